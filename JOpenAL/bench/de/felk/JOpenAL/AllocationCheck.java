@@ -0,0 +1,93 @@
+package de.felk.JOpenAL;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.openal.AL10;
+
+/**
+ * Checks that a frame of a typical game loop doesn't allocate once warmed up: moving the listener, moving, fading and pitching every sound, and SoundManager.update(). Runs on a SoftwareMixer, so no sound device is needed. Counts the bytes the thread allocates via com.sun.management.ThreadMXBean, which HotSpot provides, and exits with status 1 if any frame allocated. With "queued", the audio thread runs and the frames are made from the main thread, so every call becomes a queued command.
+ *
+ * Usage: AllocationCheck [sounds] [queued]
+ */
+public class AllocationCheck {
+
+	private static final int WARMUP_FRAMES = 20000; // enough for the JIT to compile the loop, so escape analysis applies
+	private static final int MEASURED_FRAMES = 1000;
+	private static final long FRAME_NANOS = 16666667; // the manual clock moves on by one 60 Hz frame per update
+	private static final String TONE = "allocation check tone";
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		boolean queued = args.length > 1 && args[1].equals("queued");
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("allocation counting is not supported by this JVM");
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		ALHelper.setBackend(new SoftwareMixer(SoftwareMixer.DEFAULT_SAMPLE_RATE, count / 2));
+		SoundManager.setManualClock(true);
+		ALBufferBank.addSound(TONE, createTone(SoftwareMixer.DEFAULT_SAMPLE_RATE)).retain();
+		// more sounds than sources, so some of them play virtually
+		Sound[] sounds = new Sound[count];
+		for (int i = 0; i < count; i++) {
+			sounds[i] = new Sound(SoundCategory.EFFECT, i % 50, 0, 0, TONE);
+			sounds[i].setLooping(true);
+			sounds[i].play();
+		}
+		if (queued)
+			SoundManager.startAudioThread(1);
+
+		for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+			frame(sounds, frame, queued);
+		}
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int frame = 0; frame < MEASURED_FRAMES; frame++) {
+			frame(sounds, frame, queued);
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		SoundManager.stopAudioThread();
+		System.out.println(String.format("%d sounds%s, %d frames: %d bytes allocated, %.1f bytes per frame", count, queued ? " (queued)" : "", MEASURED_FRAMES, allocated, (double) allocated / MEASURED_FRAMES));
+		if (allocated > 0) {
+			System.out.println("FAILED: the frame loop allocates");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/** one frame of a game moving everything around */
+	private static void frame(Sound[] sounds, int frame, boolean queued) {
+		float t = frame * 0.01f;
+		SoundManager.recalculateListener(t, 0, 0);
+		SoundManager.setListener(t, 0, 0, 1, 0, 0, 0, 0, 1, 0, -1, 0);
+		for (int i = 0; i < sounds.length; i++) {
+			Sound sound = sounds[i];
+			sound.setPosition(i % 50 + t, 1, 0);
+			sound.setVelocity(1, 0, 0);
+			sound.setGain((frame & 1) == 0 ? 0.8f : 1f);
+			sound.setPitch((frame & 2) == 0 ? 0.9f : 1.1f);
+		}
+		SoundManager.advanceClock(FRAME_NANOS);
+		SoundManager.update();
+		// like a game waiting for its next frame, gives the audio thread time to catch up
+		while (queued && SoundManager.getCommandQueueDepth() > 0) {
+			Thread.yield();
+		}
+	}
+
+	/** a short mono 16 bit sine tone */
+	private static PCMData createTone(int sampleRate) {
+		int frames = sampleRate / 4;
+		ByteBuffer data = BufferUtils.createByteBuffer(frames * 2);
+		for (int i = 0; i < frames; i++) {
+			data.putShort((short) (Math.sin(2 * Math.PI * 440 * i / sampleRate) * Short.MAX_VALUE / 2));
+		}
+		data.flip();
+		return new PCMData(data, AL10.AL_FORMAT_MONO16, sampleRate);
+	}
+
+}
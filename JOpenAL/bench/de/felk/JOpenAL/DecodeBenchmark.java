@@ -0,0 +1,48 @@
+package de.felk.JOpenAL;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures the decoding throughput of ALBufferBank for the given files. No sound device is needed, as nothing gets uploaded. To compare the decoders, pass the same material encoded as .ogg, .mp3 and .wav. Decoding .mp3 needs an mp3 service provider for javax.sound.sampled on the classpath.
+ *
+ * Usage: DecodeBenchmark [-n iterations] file...
+ */
+public class DecodeBenchmark {
+
+	private static final int WARMUP_ITERATIONS = 2;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = 10;
+		int first = 0;
+		if (args.length >= 2 && args[0].equals("-n")) {
+			iterations = Integer.parseInt(args[1]);
+			first = 2;
+		}
+		if (first >= args.length) {
+			System.out.println("usage: DecodeBenchmark [-n iterations] file...");
+			return;
+		}
+		System.out.println(String.format("%-30s %12s %10s %12s %12s", "file", "pcm bytes", "ms/decode", "pcm MB/s", "input MB/s"));
+		for (int i = first; i < args.length; i++) {
+			benchmark(new File(args[i]), iterations);
+		}
+		System.out.println("buffer pool hits: " + BufferPool.getHits() + ", misses: " + BufferPool.getMisses());
+	}
+
+	private static void benchmark(File file, int iterations) throws IOException {
+		long pcmBytes = 0;
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			PCMData data = ALBufferBank.decode(file);
+			pcmBytes = data.getData().remaining();
+			data.dispose();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			ALBufferBank.decode(file).dispose();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9 / iterations;
+		System.out.println(String.format("%-30s %12d %10.2f %12.2f %12.2f", file.getName(), pcmBytes, seconds * 1000, pcmBytes / seconds / 1e6, file.length() / seconds / 1e6));
+	}
+
+}
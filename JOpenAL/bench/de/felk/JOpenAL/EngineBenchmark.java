@@ -0,0 +1,315 @@
+package de.felk.JOpenAL;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.openal.AL10;
+
+/**
+ * Measures the engine's hot paths on a SoftwareMixer, so no sound device is needed: SoundManager.update(), stealing sources when all voices are busy, getFreeSource() on an exhausted pool, bursts of one-shots, Sound setters with and without batching, moving every sound through an EmitterBatch, and mixing. Each runs with 32, 256 and 1024 voices, every voice count in a JVM of its own, as the number of sources is fixed once the SoundManager is set up. Files given on the command line get decoded to measure the decoders' throughput.
+ *
+ * Like JMH, every benchmark runs warmup iterations first and reports the mean of the measured iterations with a 99% confidence interval. The results are written as JSON in the layout JMH uses, so they can be compared across commits with the same tools.
+ *
+ * Usage: EngineBenchmark [-quick] [-o results.json] [file...]
+ */
+public class EngineBenchmark {
+
+	private static final int[] VOICES = { 32, 256, 1024 };
+	private static final int BURST = 64; // one-shots played per burst
+	private static final int BATCH = 16; // operations between two looks at the clock
+	private static final long FRAME_NANOS = 16666667; // the manual clock moves on by one 60 Hz frame per update
+	private static final String TONE = "benchmark tone";
+	private static final float TONE_SECONDS = 0.25f;
+
+	private static int warmupIterations = 5;
+	private static int measureIterations = 10;
+	private static long iterationNanos = 200000000L;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		List<String> files = new ArrayList<String>();
+		String output = null;
+		boolean quick = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-quick")) {
+				quick = true;
+				warmupIterations = 2;
+				measureIterations = 3;
+				iterationNanos = 50000000L;
+			} else if (args[i].equals("-o") && i + 1 < args.length) {
+				output = args[++i];
+			} else if (args[i].equals("-fork") && i + 1 < args.length) {
+				runVoices(Integer.parseInt(args[++i]));
+				return;
+			} else {
+				files.add(args[i]);
+			}
+		}
+
+		List<String> results = new ArrayList<String>();
+		for (int voices : VOICES) {
+			results.addAll(fork(voices, quick));
+		}
+		for (String file : files) {
+			results.add(benchmarkDecode(new File(file)));
+		}
+
+		StringBuilder json = new StringBuilder("[\n");
+		for (int i = 0; i < results.size(); i++) {
+			json.append("  ").append(results.get(i)).append(i + 1 < results.size() ? ",\n" : "\n");
+		}
+		json.append("]\n");
+		if (output == null) {
+			System.out.print(json);
+		} else {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8);
+			try {
+				writer.write(json.toString());
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	/** runs the benchmarks for the given voice count in a new JVM and returns its results */
+	private static List<String> fork(int voices, boolean quick) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(EngineBenchmark.class.getName());
+		if (quick)
+			command.add("-quick");
+		command.add("-fork");
+		command.add(Integer.toString(voices));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(Redirect.INHERIT);
+		Process process = builder.start();
+		List<String> results = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("{"))
+					results.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		if (process.waitFor() != 0)
+			throw new IOException("benchmark fork for " + voices + " voices failed");
+		return results;
+	}
+
+	/** sets up the SoundManager with the given number of voices, all of them busy, and prints a JSON line per benchmark */
+	private static void runVoices(int voices) throws IOException {
+		PrintStream out = System.out;
+		final SoftwareMixer mixer = new SoftwareMixer(SoftwareMixer.DEFAULT_SAMPLE_RATE, voices);
+		ALHelper.setBackend(mixer);
+		SoundManager.setManualClock(true);
+		final ALBuffer tone = ALBufferBank.addSound(TONE, createTone(SoftwareMixer.DEFAULT_SAMPLE_RATE));
+		tone.retain();
+
+		// twice as many looping sounds as voices: one half plays on the sources, the other half virtually
+		final Sound[] sounds = new Sound[voices * 2];
+		for (int i = 0; i < sounds.length; i++) {
+			sounds[i] = new Sound(SoundCategory.EFFECT, i % 100, 0, 0, TONE);
+			sounds[i].priority = Sound.PRIORITY_LOW;
+			sounds[i].setLooping(true);
+			sounds[i].play();
+		}
+		String params = "\"voices\": \"" + voices + "\"";
+
+		out.println(result("update", "avgt", params, "ns/op", measure(new Operation() {
+			@Override
+			public void run() {
+				SoundManager.advanceClock(FRAME_NANOS);
+				SoundManager.update();
+			}
+		})));
+
+		out.println(result("playSteal", "avgt", params, "ns/op", measure(new Operation() {
+			private int next = 0;
+
+			@Override
+			public void run() {
+				// playing a virtual sound takes the source of the oldest playing one, which becomes virtual in turn
+				Sound sound;
+				do {
+					sound = sounds[next];
+					next = (next + 1) % sounds.length;
+				} while (!sound.isVirtual());
+				sound.play();
+			}
+		})));
+
+		out.println(result("getFreeSourceExhausted", "avgt", params, "ns/op", measure(new Operation() {
+			@Override
+			public void run() {
+				// every source is busy with a sound of higher priority
+				SoundManager.getFreeSource(Sound.PRIORITY_DELETE);
+			}
+		})));
+
+		out.println(result("setters", "avgt", params, "ns/op", measure(new SetterOperation(sounds))));
+		SoundManager.setBatched(true);
+		out.println(result("settersBatched", "avgt", params, "ns/op", measure(new SetterOperation(sounds))));
+
+		// every sound moving at once, as if attached to particles
+		final EmitterBatch batch = new EmitterBatch();
+		final int[] handles = new int[sounds.length];
+		final float[] positions = new float[sounds.length * 3];
+		for (int i = 0; i < sounds.length; i++) {
+			handles[i] = batch.add(sounds[i]);
+		}
+		out.println(result("emitterBatch", "avgt", params + ", \"sounds\": \"" + sounds.length + "\"", "ns/op", measure(new Operation() {
+			private int frame = 0;
+
+			@Override
+			public void run() {
+				frame++;
+				for (int i = 0; i < handles.length; i++) {
+					positions[i * 3] = i % 100 + (frame & 1);
+					positions[i * 3 + 1] = frame & 2;
+				}
+				batch.update(handles, positions, null, handles.length);
+				SoundManager.advanceClock(FRAME_NANOS);
+				SoundManager.update();
+			}
+		})));
+		SoundManager.setBatched(false);
+
+		out.println(result("mix", "avgt", params + ", \"frames\": \"" + OfflineRenderer.DEFAULT_BLOCK_FRAMES + "\"", "ns/op", measure(new Operation() {
+			private final float[] block = new float[OfflineRenderer.DEFAULT_BLOCK_FRAMES * 2];
+
+			@Override
+			public void run() {
+				mixer.mix(block, OfflineRenderer.DEFAULT_BLOCK_FRAMES);
+			}
+		})));
+
+		out.println(result("oneShotBurst", "avgt", params + ", \"burst\": \"" + BURST + "\"", "ns/op", measure(new Operation() {
+			@Override
+			public void run() {
+				for (int i = 0; i < BURST; i++) {
+					SoundManager.playOneShot(tone, i % 100, 0, 0, 1, 1, Sound.PRIORITY_LOW);
+				}
+				SoundManager.advanceClock(FRAME_NANOS);
+				SoundManager.update();
+			}
+		})));
+		out.flush();
+	}
+
+	/** moves, fades and pitches one sound after another */
+	private static class SetterOperation implements Operation {
+		private final Sound[] sounds;
+		private int next = 0;
+
+		private SetterOperation(Sound[] sounds) {
+			this.sounds = sounds;
+		}
+
+		@Override
+		public void run() {
+			Sound sound = sounds[next];
+			next = (next + 1) % sounds.length;
+			sound.setPosition(next, 1, 0);
+			sound.setGain((next & 1) == 0 ? 0.5f : 1f);
+			sound.setPitch((next & 2) == 0 ? 0.9f : 1.1f);
+		}
+	}
+
+	/** measures the decoding throughput for the given file */
+	private static String benchmarkDecode(final File file) throws IOException {
+		PCMData data = ALBufferBank.decode(file);
+		long pcmBytes = data.getData().remaining();
+		data.dispose();
+		double[] scores = measure(new Operation() {
+			@Override
+			public void run() {
+				try {
+					ALBufferBank.decode(file).dispose();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		// ns per decode to MB of PCM data per second
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = pcmBytes / scores[i] * 1000;
+		}
+		return result("decode", "thrpt", "\"file\": \"" + file.getName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"", "MB/s", scores);
+	}
+
+	/** a short mono 16 bit sine tone, see TONE_SECONDS */
+	private static PCMData createTone(int sampleRate) {
+		int frames = (int) (sampleRate * TONE_SECONDS);
+		ByteBuffer data = BufferUtils.createByteBuffer(frames * 2);
+		for (int i = 0; i < frames; i++) {
+			data.putShort((short) (Math.sin(2 * Math.PI * 440 * i / sampleRate) * Short.MAX_VALUE / 2));
+		}
+		data.flip();
+		return new PCMData(data, AL10.AL_FORMAT_MONO16, sampleRate);
+	}
+
+	private interface Operation {
+		public void run();
+	}
+
+	/** runs the operation for the warmup and then the measured iterations, returning the nanoseconds per operation of each measured iteration */
+	private static double[] measure(Operation operation) {
+		for (int i = 0; i < warmupIterations; i++) {
+			iterate(operation);
+		}
+		double[] scores = new double[measureIterations];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = iterate(operation);
+		}
+		return scores;
+	}
+
+	/** runs the operation for one iteration and returns the nanoseconds per operation */
+	private static double iterate(Operation operation) {
+		long operations = 0;
+		long start = System.nanoTime();
+		long end = start + iterationNanos;
+		long now;
+		do {
+			for (int i = 0; i < BATCH; i++) {
+				operation.run();
+			}
+			operations += BATCH;
+		} while ((now = System.nanoTime()) < end);
+		return (double) (now - start) / operations;
+	}
+
+	/** formats a result the way JMH does, with the mean of the scores and the half-width of their 99% confidence interval */
+	private static String result(String name, String mode, String params, String unit, double[] scores) {
+		double mean = 0;
+		for (double score : scores) {
+			mean += score;
+		}
+		mean /= scores.length;
+		double variance = 0;
+		for (double score : scores) {
+			variance += (score - mean) * (score - mean);
+		}
+		double error = scores.length > 1 ? 2.576 * Math.sqrt(variance / (scores.length - 1) / scores.length) : Double.NaN;
+		return String.format(Locale.ROOT, "{\"benchmark\": \"%s.%s\", \"mode\": \"%s\", \"params\": {%s}, \"primaryMetric\": {\"score\": %.3f, \"scoreError\": %.3f, \"scoreUnit\": \"%s\"}}", EngineBenchmark.class.getName(), name, mode, params, mean, error, unit);
+	}
+
+}
@@ -0,0 +1,93 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.openal.AL10;
+
+/**
+ * Checks that stopped sounds give their sources back: stopping a paused or a looping sound has to free its source right away, also for PRIORITY_HIGH sounds, which can't have their source stolen. Runs on a SoftwareMixer, so no sound device is needed, and exits with status 1 if a source leaked.
+ *
+ * Usage: VoiceCheck
+ */
+public class VoiceCheck {
+
+	private static final int VOICES = 4;
+	private static final long FRAME_NANOS = 16666667; // the manual clock moves on by one 60 Hz frame per update
+	private static final String TONE = "voice check tone";
+
+	private static boolean failed = false;
+
+	public static void main(String[] args) {
+		ALHelper.setBackend(new SoftwareMixer(SoftwareMixer.DEFAULT_SAMPLE_RATE, VOICES));
+		SoundManager.setManualClock(true);
+		ALBufferBank.addSound(TONE, createTone(SoftwareMixer.DEFAULT_SAMPLE_RATE)).retain();
+
+		// every source busy with a looping sound of high priority
+		Sound[] sounds = new Sound[VOICES];
+		for (int i = 0; i < VOICES; i++) {
+			sounds[i] = new Sound(SoundCategory.EFFECT, 0, 0, 0, TONE);
+			sounds[i].priority = Sound.PRIORITY_HIGH;
+			sounds[i].setLooping(true);
+			sounds[i].play();
+		}
+		frames(10);
+		check("all sources playing", 0);
+
+		// a paused source has been polled already, so nothing but the stop can free it
+		sounds[0].pause();
+		frames(10);
+		sounds[0].stop();
+		check("stop while paused", 1);
+		frames(10);
+		check("stop while paused, after update", 1);
+
+		sounds[1].stop();
+		check("stop while looping", 2);
+
+		// a new sound of high priority has to get one of the freed sources
+		Sound next = new Sound(SoundCategory.EFFECT, 0, 0, 0, TONE);
+		next.priority = Sound.PRIORITY_HIGH;
+		next.play();
+		check("new sound after stops", 1);
+		if (next.isVirtual())
+			fail("the new sound didn't get a source");
+
+		if (failed) {
+			System.out.println("FAILED: sources leaked");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void frames(int count) {
+		for (int i = 0; i < count; i++) {
+			SoundManager.advanceClock(FRAME_NANOS);
+			SoundManager.update();
+		}
+	}
+
+	private static void check(String step, int expectedFree) {
+		int free = SoundManager.getFreeSourceCount();
+		System.out.println(String.format("%-35s %d free sources, expected %d", step, free, expectedFree));
+		if (free != expectedFree)
+			fail(step);
+	}
+
+	private static void fail(String message) {
+		System.out.println("  wrong: " + message);
+		failed = true;
+	}
+
+	/** a short mono 16 bit sine tone */
+	private static PCMData createTone(int sampleRate) {
+		int frames = sampleRate / 4;
+		ByteBuffer data = BufferUtils.createByteBuffer(frames * 2);
+		for (int i = 0; i < frames; i++) {
+			data.putShort((short) (Math.sin(2 * Math.PI * 440 * i / sampleRate) * Short.MAX_VALUE / 2));
+		}
+		data.flip();
+		return new PCMData(data, AL10.AL_FORMAT_MONO16, sampleRate);
+	}
+
+}
@@ -1,16 +1,34 @@
 package de.felk.JOpenAL;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ALBuffer {
 
 	private int size;
 	private int bufferID;
 	private int channels;
+	private int frequency;
+	private int bits;
+	// how many sounds use this buffer, only unreferenced buffers may be evicted. -1 once evicted, so it can't be retained anymore
+	private final AtomicInteger references = new AtomicInteger();
+	String filename; // name the buffer bank holds this buffer under, null if it wasn't added to it
+	ALBufferBank.Usage usage; // play frequency of the file this buffer holds, set by the buffer bank
+	int bindings = 0; // how many sources have this buffer attached, the sound device refuses to delete it until they let go. Only touched on the AL thread
+	boolean unloadWhenUnbound = false; // whether ALBufferBank.unloadBuffer() had to leave it to the last source letting go. Only touched on the AL thread
+	long lastUsed; // time of the last lookup in the buffer bank, least recently used buffers get evicted first. Only roughly up to date across threads
 
 	/** Creates a new buffer, representing an audio file loaded into the sound device */
 	public ALBuffer(int bufferID, int size, int channels) {
+		this(bufferID, size, channels, 0, 16);
+	}
+
+	/** Creates a new buffer, representing an audio file loaded into the sound device */
+	public ALBuffer(int bufferID, int size, int channels, int frequency, int bits) {
 		this.bufferID = bufferID;
 		this.size = size;
 		this.channels = channels;
+		this.frequency = frequency;
+		this.bits = bits;
 	}
 
 	/** Frees this buffer (unloads data from audio device) */
@@ -18,6 +36,37 @@ public class ALBuffer {
 		ALHelper.destroyBuffer(bufferID);
 	}
 
+	/** marks this buffer as used by one more sound. Returns false if the buffer has been evicted in the meantime */
+	boolean retain() {
+		while (true) {
+			int count = references.get();
+			if (count < 0)
+				return false;
+			if (references.compareAndSet(count, count + 1))
+				return true;
+		}
+	}
+
+	/** marks this buffer as used by one sound less */
+	void release() {
+		references.decrementAndGet();
+	}
+
+	/** returns whether any sound uses this buffer */
+	boolean isReferenced() {
+		return references.get() > 0;
+	}
+
+	/** returns whether a source still has this buffer attached */
+	boolean isBound() {
+		return bindings > 0;
+	}
+
+	/** marks this buffer as evicted if no sound uses it, so it can't be retained anymore. Returns whether it was marked */
+	boolean markEvicted() {
+		return references.compareAndSet(0, -1);
+	}
+
 	/** Returns the size of the raw buffer data in bytes */
 	public int getSize() {
 		return size;
@@ -27,12 +76,32 @@ public class ALBuffer {
 		return channels;
 	}
 
+	/** Returns the sample rate of the buffer data in Hz, or 0 if unknown */
+	public int getFrequency() {
+		return frequency;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	/** Returns the playback duration of the buffer at normal pitch in seconds, or 0 if unknown */
+	public float getDuration() {
+		if (frequency <= 0)
+			return 0;
+		if (bits == 4) {
+			// IMA4, a fixed number of frames in every block
+			return (float) (size / (IMA4Encoder.BLOCK_SIZE * channels)) * IMA4Encoder.BLOCK_FRAMES / frequency;
+		}
+		return (float) size / (channels * (bits / 8) * frequency);
+	}
+
 	public int getBufferID() {
 		return bufferID;
 	}
 
 	@Override
 	public String toString() {
-		return "ALBuffer(size: " + size + ", bufferID: " + bufferID + ", channels: " + channels + ")";
+		return "ALBuffer(size: " + size + ", bufferID: " + bufferID + ", channels: " + channels + ", frequency: " + frequency + ", bits: " + bits + ")";
 	}
 }
@@ -1,72 +1,290 @@
 package de.felk.JOpenAL;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.lwjgl.LWJGLException;
-import org.lwjgl.openal.AL10;
 import org.lwjgl.openal.OpenALException;
-import org.lwjgl.util.WaveData;
-
-import com.jcraft.oggdecoder.OggData;
-import com.jcraft.oggdecoder.OggDecoder;
 
+/**
+ * Loads sound files into buffers on the sound device and keeps them for reuse. Can be used from any thread: looking up loaded buffers doesn't lock, and concurrent requests for a file that isn't loaded yet share a single load. Decoding happens on whichever thread gets to it first, uploading always on the AL thread (see SoundManager.isALThread())
+ * <p>
+ * Each file is in one of three tiers: only on disk, its undecoded bytes held in memory, or decoded in a buffer on the sound device. Buffers that exceed the budget get demoted by how often they have been played lately: frequently played ones keep their bytes in memory within the compressed budget, so bringing them back doesn't need the disk. prefetch() promotes files in the background ahead of their first play
+ */
 public class ALBufferBank {
 
-	public static HashMap<String, ALBuffer> buffers;
-	private static OggDecoder oggDecoder = new OggDecoder();
+	public static final int TIER_DISK = 0; // only the file on disk
+	public static final int TIER_COMPRESSED = 1; // the file's undecoded bytes in memory
+	public static final int TIER_PCM = 2; // decoded in a buffer on the sound device
 
-	static {
-		buffers = new HashMap<String, ALBuffer>();
-	}
+	// loaded buffers. Only changed on the AL thread while holding the bank's lock
+	public static final ConcurrentHashMap<String, ALBuffer> buffers = new ConcurrentHashMap<String, ALBuffer>();
+	// files currently being loaded, every request for one of them waits for the same load
+	private static final ConcurrentHashMap<String, Load> loading = new ConcurrentHashMap<String, Load>();
+	private static final int INITIAL_DECODE_SIZE = 1 << 20; // buffer size for decoding streams of unknown length
+	private static final int MIN_FREE = 64; // space a decode buffer needs left for at least one more sample frame
+	private static long budget = Long.MAX_VALUE; // how many bytes of buffer data may stay on the sound device
+	private static volatile boolean evictPending = false; // whether the budget got exceeded off the AL thread, see evict()
+	private static final AtomicLong usedMemory = new AtomicLong();
+	// undecoded content of files evicted from the sound device. Only changed while holding its own lock
+	private static final ConcurrentHashMap<String, byte[]> compressed = new ConcurrentHashMap<String, byte[]>();
+	private static long compressedBudget = 16L << 20; // how many bytes of undecoded files may be held in memory
+	private static final AtomicLong compressedMemory = new AtomicLong();
+	// how often each file that has been loaded got played, kept across tiers
+	private static final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<String, Usage>();
+	private static final double PLAY_HALF_LIFE = 60e9; // nanoseconds after which a play counts half as much
+	private static double warmScore = 0.5; // weighted plays an evicted file needs to keep its bytes in memory
 
-	/** reads a sound file into a buffer and adds it to the buffer bank */
+	/** reads a sound file into a buffer and adds it to the buffer bank, unless it is loaded already */
 	public static void addSound(String filename) throws IOException, LWJGLException, OpenALException {
+		getSound(filename);
+	}
+
+	/**
+	 * Uploads already decoded PCM data into a new buffer and adds it to the buffer bank. If the file is loaded already, the data gets dropped and the loaded buffer returned. Has to be called from the AL thread
+	 * 
+	 * @param filename
+	 *            name the buffer gets stored under
+	 * @param data
+	 *            decoded PCM data, see decode()
+	 * @return the newly created ALBuffer
+	 * @throws OpenALException
+	 */
+	public static synchronized ALBuffer addSound(String filename, PCMData data) throws OpenALException {
+		ALBuffer loaded = lookup(filename);
+		if (loaded != null) {
+			data.dispose();
+			return loaded;
+		}
 		// create OpenAL context, if not already done
 		SoundManager.createAL();
-		
-		File file = new File("res/sound/" + filename);
 
 		int id = ALHelper.genBuffer();
+		int format = data.getFormat();
+		int encodedSize = data.getData().remaining();
+		try {
+			ALHelper.setBuffer(id, data.getFormat(), data.getData(), data.getSampleRate());
+		} finally {
+			// the sound device has its own copy now
+			data.dispose();
+		}
+
+		int size = ALHelper.getBufferSize(id);
+		int channels = ALHelper.getBufferChannels(id);
+		int frequency = ALHelper.getBufferFrequency(id);
+		int bits = ALHelper.getBufferBits(id);
+		if (IMA4Encoder.isIMA4(format)) {
+			// implementations differ in what they report for compressed buffers, so the encoded size counts
+			size = encodedSize;
+			bits = 4;
+		}
+		ALBuffer buffer = new ALBuffer(id, size, channels, frequency, bits);
+		buffer.lastUsed = System.nanoTime();
+		buffer.filename = filename;
+		buffer.usage = getUsage(filename);
+		buffers.put(filename, buffer);
+		usedMemory.addAndGet(size);
+		// the tiers don't overlap, the undecoded bytes are kept again when it gets evicted
+		dropCompressed(filename);
+		evict(buffer);
+		return buffer;
+	}
+
+	/** Decodes a sound file into PCM data and converts it according to the PCMConverter settings, without touching the sound device, so this can be called from any thread. Uses the PCMCache if enabled, and the file's bytes if they are held in memory */
+	public static PCMData decode(String filename) throws IOException {
+		File file = new File("res/sound/" + filename);
+		if (!PCMCache.isEnabled())
+			return PCMConverter.convert(filename, decode(file, compressed.get(filename)));
 
-		// read file into buffer
+		String variant = PCMConverter.getVariant(filename);
+		PCMData data = null;
+		try {
+			data = PCMCache.load(filename, file, variant);
+		} catch (IOException e) {
+			// the cache is only a shortcut, an unreadable entry gets decoded from the file instead
+			System.out.println("could not read cache entry for " + filename);
+			e.printStackTrace();
+		}
+		if (data != null)
+			return data;
+		// no entry yet or a stale one, decode and (re)build it
+		data = PCMConverter.convert(filename, decode(file, compressed.get(filename)));
+		try {
+			PCMCache.store(filename, file, variant, data);
+		} catch (IOException e) {
+			// the sound still loads, it just gets decoded again next time
+			System.out.println("could not write cache entry for " + filename);
+			e.printStackTrace();
+		}
+		return data;
+	}
+
+	/** decodes the given file, bypassing the cache */
+	static PCMData decode(File file) throws IOException {
+		return decode(file, null);
+	}
+
+	/** decodes the given file from the given content of it, or from disk if null */
+	private static PCMData decode(File file, byte[] content) throws IOException {
+		// read file into memory. Every decoder writes into a pooled buffer, see readFully()
+		PCMStream stream;
+		long sizeHint = -1;
 		String format = getExtension(file);
 		switch (format) {
 		case "wav":
-			setWaveFile(id, file);
+		case "mp3":
+			// mp3 needs a service provider for javax.sound.sampled on the classpath
+			SampledStream sampledStream = new SampledStream(file, content);
+			sizeHint = sampledStream.getLength();
+			stream = sampledStream;
 			break;
 		case "ogg":
-			setVorbisFile(id, file);
-			break;
-		case "mp3":
-			setMpegFile(id, file);
+			stream = new OggStream(file, content);
 			break;
 		default:
 			System.out.println("did not recognize extension for: " + file.getName() + ", allowed extensions: .wav .ogg");
 			throw new IOException();
 		}
-		
-		int size = ALHelper.getBufferSize(id);
-		int channels = ALHelper.getBufferChannels(id);
-		buffers.put(file.getName(), new ALBuffer(id, size, channels));
+		try {
+			return readFully(stream, sizeHint);
+		} finally {
+			stream.close();
+		}
 	}
 
-	/** Returns the ALBuffer for the corresponding file. If it hasn't been loaded yet, it gets loaded. */
+	/**
+	 * Returns the ALBuffer for the corresponding file. If it hasn't been loaded yet, it gets loaded. If another thread is loading it already, this waits for that load instead of starting another one. Called from a thread other than the AL thread, this decodes the file right away but waits for SoundManager.update() to upload it
+	 */
 	public static ALBuffer getSound(String filename) throws OpenALException, IOException, LWJGLException {
-		if (!buffers.containsKey(filename))
-			addSound(filename);
-		return buffers.get(filename);
+		ALBuffer buffer = lookup(filename);
+		if (buffer != null)
+			return buffer;
+		Load load = getLoad(filename);
+		// both steps do nothing if another thread is at them already
+		load.decoding.run();
+		if (SoundManager.isALThread())
+			load.upload.run();
+		return getResult(load.upload);
+	}
+
+	/**
+	 * Starts loading the given file in the background, unless it is loaded or being loaded already. The file gets decoded on a worker thread and uploaded by SoundManager.update()
+	 * @return a future that completes with the ALBuffer once it is uploaded
+	 */
+	public static Future<ALBuffer> getSoundAsync(String filename) {
+		ALBuffer buffer = lookup(filename);
+		if (buffer != null) {
+			FutureTask<ALBuffer> loaded = new FutureTask<ALBuffer>(NOTHING, buffer);
+			loaded.run();
+			return loaded;
+		}
+		Load load = getLoad(filename);
+		BackgroundLoader.getExecutor().execute(load.decoding);
+		return load.upload;
+	}
+
+	/** Uploads all files that have been decoded by loads started from other threads, and evicts what they couldn't. Gets called by SoundManager.update() */
+	static void uploadPending() {
+		if (evictPending) {
+			evictPending = false;
+			evict(null);
+		}
+		if (loading.isEmpty())
+			return;
+		for (Load load : loading.values()) {
+			if (load.decoding.isDone())
+				load.upload.run();
+		}
+	}
+
+	/**
+	 * Hints that the given files are about to be played. Files not on the sound device get decoded in the background and uploaded by SoundManager.update(), so the first play doesn't wait for the decoder. The hint counts as a play, so the buffers aren't the first to be evicted again before they get used
+	 */
+	public static void prefetch(String... filenames) {
+		for (String filename : filenames) {
+			getUsage(filename).played();
+			getSoundAsync(filename);
+		}
+	}
+
+	/** Returns which tier the given file is in at the moment, one of TIER_DISK, TIER_COMPRESSED and TIER_PCM */
+	public static int getTier(String filename) {
+		if (buffers.containsKey(filename))
+			return TIER_PCM;
+		if (compressed.containsKey(filename))
+			return TIER_COMPRESSED;
+		return TIER_DISK;
+	}
+
+	/** Counts a play of the given buffer towards its file's play frequency. Gets called whenever a sound starts playing */
+	static void played(ALBuffer buffer) {
+		if (buffer != null && buffer.usage != null)
+			buffer.usage.played();
+	}
+
+	/** returns the play frequency record of the given file, creating it on first use */
+	private static Usage getUsage(String filename) {
+		Usage record = usage.get(filename);
+		if (record != null)
+			return record;
+		record = new Usage();
+		Usage existing = usage.putIfAbsent(filename, record);
+		return existing != null ? existing : record;
+	}
+
+	/** returns the weighted number of recent plays of the given file */
+	private static double getScore(String filename, long now) {
+		Usage record = usage.get(filename);
+		return record == null ? 0 : record.getScore(now);
+	}
+
+	/** returns the loaded buffer of the given file, or null if it isn't loaded */
+	private static ALBuffer lookup(String filename) {
+		ALBuffer buffer = buffers.get(filename);
+		if (buffer != null)
+			buffer.lastUsed = System.nanoTime();
+		return buffer;
+	}
+
+	/** returns the load of the given file that is in progress, or starts a new one */
+	private static Load getLoad(String filename) {
+		Load load = loading.get(filename);
+		if (load != null)
+			return load;
+		load = new Load(filename);
+		Load existing = loading.putIfAbsent(filename, load);
+		return existing != null ? existing : load;
+	}
+
+	/** waits for the given load to finish and returns its buffer, passing on what went wrong otherwise */
+	private static ALBuffer getResult(Future<ALBuffer> upload) throws OpenALException, IOException, LWJGLException {
+		try {
+			return upload.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for a sound to load", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof LWJGLException)
+				throw (LWJGLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
 	}
 
 	public static ALBuffer[] getBuffers(String[] filenames) throws OpenALException, IOException, LWJGLException {
@@ -77,54 +295,267 @@ public class ALBufferBank {
 		return buffers;
 	}
 
-	/** reads given .wav wave file into given buffer */
-	private static void setWaveFile(int bufferID, File file) throws FileNotFoundException {
-		WaveData waveFile = WaveData.create(new BufferedInputStream(new FileInputStream(file)));
-		ALHelper.setBuffer(bufferID, waveFile.format, waveFile.data, waveFile.samplerate);
-		waveFile.dispose();
+	/** Like getSound(), but retains the buffer, so it can't be evicted while it is held. Give it back with releaseSound() */
+	public static ALBuffer acquireSound(String filename) throws OpenALException, IOException, LWJGLException {
+		while (true) {
+			ALBuffer buffer = getSound(filename);
+			// if it got evicted right after the lookup, it has to be loaded again
+			if (buffer.retain())
+				return buffer;
+		}
 	}
 
-	/** reads given .ogg vorbis file into given buffer */
-	private static void setVorbisFile(int bufferID, File file) throws IOException {
-		// Decode OGG into PCM
-		InputStream inputStream = new FileInputStream(file);
-		OggData oggData = oggDecoder.getData(inputStream);
+	/** Releases a buffer retained by acquireSound(). Unreferenced buffers get evicted if the memory budget is exceeded */
+	public static void releaseSound(ALBuffer buffer) {
+		buffer.release();
+		evict(null);
+	}
 
-		// Load PCM data into buffer
-		ALHelper.setBuffer(bufferID, oggData.channels > 1 ? AL10.AL_FORMAT_STEREO16 : AL10.AL_FORMAT_MONO16, oggData.data, oggData.rate);
+	/** Like getBuffers(), but retains every buffer right after getting it, so loading the next one can't evict it. Give them back with releaseBuffers() */
+	public static ALBuffer[] acquireBuffers(String[] filenames) throws OpenALException, IOException, LWJGLException {
+		ALBuffer[] buffers = new ALBuffer[filenames.length];
+		try {
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = acquireSound(filenames[i]);
+			}
+		} catch (OpenALException | IOException | LWJGLException e) {
+			releaseBuffers(buffers);
+			throw e;
+		}
+		return buffers;
+	}
 
-		inputStream.close();
+	/** Releases buffers retained by acquireBuffers(). Unreferenced buffers get evicted if the memory budget is exceeded */
+	public static void releaseBuffers(ALBuffer[] buffers) {
+		for (ALBuffer buffer : buffers) {
+			if (buffer != null)
+				buffer.release();
+		}
+		evict(null);
 	}
-	
-	private static void setMpegFile(int bufferID, File file) {
-		AudioInputStream in = null;
-		try {
-			in = AudioSystem.getAudioInputStream(file);
-		} catch (UnsupportedAudioFileException | IOException e) {
-			e.printStackTrace();
+
+	/** Releases buffers retained by acquireBuffers() and frees the ones no sound or group uses anymore right away, regardless of the budget. Has to be called from the AL thread */
+	public static void unloadBuffers(ALBuffer[] buffers) {
+		for (ALBuffer buffer : buffers) {
+			if (buffer == null)
+				continue;
+			buffer.release();
+			unloadBuffer(buffer);
+		}
+	}
+
+	/** Frees the given buffer right away if no sound or group uses it, regardless of the budget. A buffer still attached to a source gets freed once the source lets go of it. Has to be called from the AL thread */
+	static void unloadBuffer(ALBuffer buffer) {
+		if (buffer.filename == null || buffer.isReferenced())
+			return;
+		if (buffer.isBound()) {
+			// the sound device refuses to delete it yet, the source letting go of it frees it
+			buffer.unloadWhenUnbound = true;
 			return;
 		}
-		AudioInputStream din = null;
-		AudioFormat baseFormat = in.getFormat();
-		AudioFormat decodedFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 
-		                                            baseFormat.getSampleRate(),
-		                                            16,
-		                                            baseFormat.getChannels(),
-		                                            baseFormat.getChannels() * 2,
-		                                            baseFormat.getSampleRate(),
-		                                            false);
-		din = AudioSystem.getAudioInputStream(decodedFormat, in);
-		ByteBuffer buffer = null;
-		try {
-			buffer = ByteBuffer.allocate(din.available());
-			int b;
-			while ((b = din.read()) != -1) buffer.putInt(b);
-		} catch (IOException e) {
-			e.printStackTrace();
+		free(buffer.filename, buffer, getScore(buffer.filename, System.nanoTime()));
+	}
+
+	/**
+	 * Sets how many bytes of buffer data may stay loaded on the sound device. If exceeded, buffers no sound references anymore get freed, least recently used first, by the next SoundManager.update() if called from another thread than the AL thread. They get loaded again on the next getSound()
+	 * 
+	 * @param bytes
+	 *            the budget in bytes, Long.MAX_VALUE for no limit
+	 */
+	public static void setBudget(long bytes) {
+		budget = bytes;
+		evict(null);
+	}
+
+	public static long getBudget() {
+		return budget;
+	}
+
+	/** Returns the size of all loaded buffers in bytes */
+	public static long getUsedMemory() {
+		return usedMemory.get();
+	}
+
+	/**
+	 * Sets how many bytes of undecoded files evicted from the sound device may be held in memory. If exceeded, the least played ones get dropped
+	 * 
+	 * @param bytes
+	 *            the budget in bytes, 0 to always go back to the disk
+	 */
+	public static void setCompressedBudget(long bytes) {
+		synchronized (compressed) {
+			compressedBudget = bytes;
+			makeRoom(0, Double.MAX_VALUE);
+		}
+	}
+
+	public static long getCompressedBudget() {
+		return compressedBudget;
+	}
+
+	/** Returns the size of all undecoded files held in memory in bytes */
+	public static long getCompressedMemory() {
+		return compressedMemory.get();
+	}
+
+	/** Sets how many plays an evicted file needs to keep its bytes in memory. Every play counts half as much after a minute, so 1 means about one play within the last minute */
+	public static void setWarmScore(double plays) {
+		warmScore = plays;
+	}
+
+	public static double getWarmScore() {
+		return warmScore;
+	}
+
+	/** frees unreferenced buffers, least played first, until the budget is met again. keep is spared, as it's about to be handed out. Evicted files that have been played often enough keep their bytes in memory */
+	private static synchronized void evict(ALBuffer keep) {
+		if (usedMemory.get() <= budget)
+			return;
+		if (!SoundManager.isALThread()) {
+			// deleting buffers is up to the AL thread, the next SoundManager.update() evicts
+			evictPending = true;
+			return;
+		}
+		long now = System.nanoTime();
+		ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+		for (String filename : buffers.keySet()) {
+			ALBuffer buffer = buffers.get(filename);
+			if (buffer != null && buffer != keep && !buffer.isReferenced() && !buffer.isBound())
+				candidates.add(new Candidate(filename, getScore(filename, now), buffer.lastUsed));
+		}
+		Collections.sort(candidates);
+		for (Candidate candidate : candidates) {
+			if (usedMemory.get() <= budget)
+				break;
+			ALBuffer buffer = buffers.get(candidate.filename);
+			if (buffer != null)
+				free(candidate.filename, buffer, candidate.score);
+		}
+	}
+
+	/** frees the given buffer unless a sound retained it in the meantime or a source still has it attached. If it has been played often enough, its file's bytes stay in memory */
+	private static synchronized void free(String filename, ALBuffer buffer, double score) {
+		if (buffer.isBound())
 			return;
+		// the bank might have been cleared in the meantime, which destroyed it already
+		if (!buffer.markEvicted() || !buffers.remove(filename, buffer))
+			return;
+		usedMemory.addAndGet(-buffer.getSize());
+		buffer.destroy();
+		if (score >= warmScore)
+			keepCompressed(filename);
+	}
+
+	/** reads the given file into memory in the background and keeps it in the compressed tier, if it still fits in there then */
+	private static void keepCompressed(final String filename) {
+		if (compressedBudget <= 0 || compressed.containsKey(filename))
+			return;
+		BackgroundLoader.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				File file = new File("res/sound/" + filename);
+				// a file that doesn't fit anyway isn't worth reading
+				if (file.length() > compressedBudget)
+					return;
+				byte[] content;
+				try {
+					content = Files.readAllBytes(file.toPath());
+				} catch (IOException e) {
+					// it just stays on disk only
+					return;
+				}
+				synchronized (compressed) {
+					// it might have been loaded again while this was reading
+					if (buffers.containsKey(filename) || compressed.containsKey(filename))
+						return;
+					if (!makeRoom(content.length, getScore(filename, System.nanoTime())))
+						return;
+					compressed.put(filename, content);
+					compressedMemory.addAndGet(content.length);
+				}
+			}
+		});
+	}
+
+	/** removes the given file from the compressed tier, if it is in there */
+	private static void dropCompressed(String filename) {
+		synchronized (compressed) {
+			byte[] content = compressed.remove(filename);
+			if (content != null)
+				compressedMemory.addAndGet(-content.length);
+		}
+	}
+
+	/** drops files played less than the given score from the compressed tier, least played first, until the given number of bytes fits into its budget. Returns whether it fits. Has to be called holding the compressed tier's lock */
+	private static boolean makeRoom(long bytes, double score) {
+		if (compressedMemory.get() + bytes <= compressedBudget)
+			return true;
+		long now = System.nanoTime();
+		ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+		for (String filename : compressed.keySet()) {
+			double candidateScore = getScore(filename, now);
+			if (candidateScore < score)
+				candidates.add(new Candidate(filename, candidateScore, 0));
+		}
+		Collections.sort(candidates);
+		for (Candidate candidate : candidates) {
+			if (compressedMemory.get() + bytes <= compressedBudget)
+				break;
+			compressedMemory.addAndGet(-compressed.remove(candidate.filename).length);
+		}
+		return compressedMemory.get() + bytes <= compressedBudget;
+	}
+
+	/** Opens the given file for chunk-wise decoding, used for streamed playback */
+	public static PCMStream openStream(String filename) throws IOException {
+		File file = new File("res/sound/" + filename);
+		String format = getExtension(file);
+		switch (format) {
+		case "wav":
+			return new SampledStream(file);
+		case "ogg":
+			return new OggStream(file);
+		default:
+			System.out.println("did not recognize extension for streaming: " + file.getName() + ", allowed extensions: .wav .ogg");
+			throw new IOException();
+		}
+	}
+
+	/**
+	 * Decodes the whole remaining stream block by block into a pooled direct buffer, which grows as needed. The buffer goes back into the BufferPool when the returned data gets disposed
+	 * 
+	 * @param stream
+	 *            stream to decode
+	 * @param sizeHint
+	 *            expected size of the decoded data in bytes, or a value <= 0 if unknown
+	 * @return the decoded data
+	 * @throws IOException
+	 */
+	static PCMData readFully(PCMStream stream, long sizeHint) throws IOException {
+		// a little headroom, so an exact hint doesn't make the buffer grow just to find the end of the stream
+		int capacity = (sizeHint > 0 && sizeHint < Integer.MAX_VALUE - MIN_FREE) ? (int) sizeHint + MIN_FREE : INITIAL_DECODE_SIZE;
+		ByteBuffer buffer = BufferPool.acquire(capacity);
+		buffer.limit(buffer.capacity());
+		try {
+			while (true) {
+				// grow before the space left gets too small for a whole sample frame
+				if (buffer.remaining() < MIN_FREE) {
+					ByteBuffer larger = BufferPool.acquire(buffer.capacity() * 2);
+					larger.limit(larger.capacity());
+					buffer.flip();
+					larger.put(buffer);
+					BufferPool.release(buffer);
+					buffer = larger;
+				}
+				if (stream.read(buffer) < 0)
+					break;
+			}
+		} catch (IOException | RuntimeException e) {
+			BufferPool.release(buffer);
+			throw e;
 		}
 		buffer.flip();
-		ALHelper.setBuffer(bufferID, AL10.AL_FORMAT_STEREO16, buffer, (int) decodedFormat.getSampleRate());
+		return new PCMData(buffer, ALHelper.getFormat(stream.getChannels()), stream.getSampleRate(), true);
 	}
 
 	/** Returns the lowercase file extension of the given File (for example "ogg")*/
@@ -136,11 +567,109 @@ public class ALBufferBank {
 	}
 
 	/** Frees all buffers (unloads all data from the sound device) */
-	public static void clear() {
-		for (int i = 0; i < buffers.size(); i++) {
-			if (buffers.get(i) != null)
-				buffers.get(i).destroy();
+	public static synchronized void clear() {
+		for (ALBuffer buffer : buffers.values()) {
+			buffer.destroy();
+		}
+		buffers.clear();
+		usedMemory.set(0);
+	}
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	/** How often a file got played lately: its plays, each one counting half as much after every PLAY_HALF_LIFE */
+	static class Usage {
+
+		private double score = 0;
+		private long lastPlayed = System.nanoTime();
+
+		synchronized void played() {
+			long now = System.nanoTime();
+			score = getScore(now) + 1;
+			lastPlayed = now;
 		}
+
+		synchronized double getScore(long now) {
+			return score * Math.pow(0.5, (now - lastPlayed) / PLAY_HALF_LIFE);
+		}
+
+	}
+
+	/** A file that could be demoted, with its score taken once so sorting sees consistent values. Orders the least played first, the least recently used of those first */
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final String filename;
+		private final double score;
+		private final long lastUsed;
+
+		private Candidate(String filename, double score, long lastUsed) {
+			this.filename = filename;
+			this.score = score;
+			this.lastUsed = lastUsed;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			if (score != other.score)
+				return score < other.score ? -1 : 1;
+			return lastUsed < other.lastUsed ? -1 : (lastUsed == other.lastUsed ? 0 : 1);
+		}
+
+	}
+
+	/** A file being loaded. Each step runs only once, however many threads ask for the file: the first one to get to it does the work, the others wait for its result */
+	private static class Load {
+
+		private final FutureTask<PCMData> decoding;
+		private final FutureTask<ALBuffer> upload;
+
+		private Load(final String filename) {
+			decoding = new FutureTask<PCMData>(new Callable<PCMData>() {
+				@Override
+				public PCMData call() throws IOException {
+					// a load that finished just before this one started already did the work
+					if (buffers.containsKey(filename))
+						return null;
+					return decode(filename);
+				}
+			});
+			upload = new FutureTask<ALBuffer>(new Callable<ALBuffer>() {
+				@Override
+				public ALBuffer call() throws Exception {
+					try {
+						PCMData data = getDecoded();
+						if (data == null) {
+							ALBuffer loaded = lookup(filename);
+							if (loaded != null)
+								return loaded;
+							// evicted again in the meantime
+							data = decode(filename);
+						}
+						return addSound(filename, data);
+					} finally {
+						// the buffer is in the bank by now, or the next request tries again
+						loading.remove(filename, Load.this);
+					}
+				}
+			});
+		}
+
+		/** waits for the decoding and returns its data, passing on what went wrong */
+		private PCMData getDecoded() throws Exception {
+			try {
+				return decoding.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception)
+					throw (Exception) cause;
+				throw (Error) cause;
+			}
+		}
+
 	}
 
 }
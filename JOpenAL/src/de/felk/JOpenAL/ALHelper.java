@@ -3,18 +3,19 @@ package de.felk.JOpenAL;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.lwjgl.BufferUtils;
 
 import static org.lwjgl.openal.AL10.*;
 import static org.lwjgl.openal.AL11.*;
 import static org.lwjgl.openal.ALC10.*;
-import static org.lwjgl.openal.ALC11.*;
 
-import org.lwjgl.openal.AL;
-import org.lwjgl.openal.AL10;
-import org.lwjgl.openal.ALCdevice;
-import org.lwjgl.openal.EFX10;
 import org.lwjgl.openal.OpenALException;
 
 public class ALHelper {
@@ -22,53 +23,97 @@ public class ALHelper {
 	public static int MONO_SOURCES = -1;
 	public static int STEREO_SOURCES = -1;
 	public static int FREQUENCY = -1;
+	public static boolean IMA4 = false; // whether the device takes IMA4 ADPCM buffers (AL_EXT_IMA4)
+
+	public static final int AL_FORMAT_MONO_IMA4 = 0x1300;
+	public static final int AL_FORMAT_STEREO_IMA4 = 0x1301;
+
+	public static final int CHECK_STRICT = 0; // check for errors after every AL call
+	public static final int CHECK_DEFERRED = 1; // check once per SoundManager.update(), reporting the calls made since the last check
+	public static final int CHECK_TRACING = 2; // check after every AL call and record call counts and timings
+	private static int checkMode = CHECK_STRICT;
+
+	private static final int RECENT_CALLS = 64; // how many calls a deferred error report names at most
+	private static final String[] recentCalls = new String[RECENT_CALLS];
+	private static int callsSinceCheck = 0;
+	private static long callStart;
+	private static final HashMap<String, CallStats> callStats = new HashMap<String, CallStats>();
+	private static SoundBackend backend = new OpenALBackend();
+	private static final FloatBuffer orientation = BufferUtils.createFloatBuffer(6); // reused by setListener(), which only gets called from the AL thread
+
+	/** Sets what plays the sound, OpenALBackend by default. Has to be called before the SoundManager is used */
+	public static void setBackend(SoundBackend backend) {
+		ALHelper.backend = backend;
+	}
+
+	public static SoundBackend getBackend() {
+		return backend;
+	}
 
 	/** Starts the playback of the given source */
 	public static void play(int sourceID) throws OpenALException {
-		alSourcePlay(sourceID);
-		checkALError();
+		begin();
+		backend.play(sourceID);
+		end("alSourcePlay");
 	}
 
 	/** Stops the playback of the given source */
 	public static void stop(int sourceID) throws OpenALException {
-		alSourceStop(sourceID);
-		checkALError();
+		begin();
+		backend.stop(sourceID);
+		end("alSourceStop");
+	}
+
+	/** Rewinds the given source, putting it back into the initial state */
+	public static void rewind(int sourceID) throws OpenALException {
+		begin();
+		backend.rewind(sourceID);
+		end("alSourceRewind");
 	}
 
 	/** Pauses the playback of the given source */
 	public static void pause(int sourceID) throws OpenALException {
-		alSourcePause(sourceID);
-		checkALError();
+		begin();
+		backend.pause(sourceID);
+		end("alSourcePause");
 	}
 
 	/** Creates a new source and returns the id */
 	public static int genSource() throws OpenALException {
-		int i = alGenSources();
-		checkALError();
+		begin();
+		int i = backend.genSource();
+		end("alGenSources");
 		return i;
 	}
 
 	/** Creates a new buffer and returns the id */
 	public static int genBuffer() throws OpenALException {
-		int i = alGenBuffers();
-		checkALError();
+		begin();
+		int i = backend.genBuffer();
+		end("alGenBuffers");
 		return i;
 	}
 
 	/** Creates num new sources and returns an array of ids */
 	public static int[] genSources(int num) throws OpenALException {
 		IntBuffer ib = BufferUtils.createIntBuffer(num);
-		alGenSources(ib);
-		checkALError();
-		return ib.array();
+		begin();
+		backend.genSources(ib);
+		end("alGenSources");
+		int[] ids = new int[num];
+		ib.get(ids);
+		return ids;
 	}
 
 	/** Creates num new buffers and returns an array of ids */
 	public static int[] genBuffers(int num) throws OpenALException {
 		IntBuffer ib = BufferUtils.createIntBuffer(num);
-		alGenBuffers(ib);
-		checkALError();
-		return ib.array();
+		begin();
+		backend.genBuffers(ib);
+		end("alGenBuffers");
+		int[] ids = new int[num];
+		ib.get(ids);
+		return ids;
 	}
 
 	/**
@@ -84,91 +129,166 @@ public class ALHelper {
 	 * @throws OpenALException
 	 */
 	public static void setBuffer(int bufferID, int format, ByteBuffer data, int samplerate) throws OpenALException {
-		alBufferData(bufferID, format, data, samplerate);
-		checkALError();
+		begin();
+		backend.bufferData(bufferID, format, data, samplerate);
+		end("alBufferData");
 	}
 
 	/** makes the given source play back the audio data from the given buffer */
 	public static void bindBufferToSource(int bufferID, int sourceID) throws OpenALException {
-		alSourcei(sourceID, AL_BUFFER, bufferID);
-		checkALError();
+		begin();
+		backend.sourcei(sourceID, AL_BUFFER, bufferID);
+		end("alSourcei AL_BUFFER");
+	}
+
+	/** appends the given buffer to the queue of buffers the given source plays back one after another */
+	public static void queueBuffer(int sourceID, int bufferID) throws OpenALException {
+		begin();
+		backend.queueBuffer(sourceID, bufferID);
+		end("alSourceQueueBuffers");
+	}
+
+	/** removes the oldest processed buffer from the queue of the given source and returns its id */
+	public static int unqueueBuffer(int sourceID) throws OpenALException {
+		begin();
+		int result = backend.unqueueBuffer(sourceID);
+		end("alSourceUnqueueBuffers");
+		return result;
+	}
+
+	/** returns how many of the buffers queued on the given source have been played back completely */
+	public static int getBuffersProcessed(int sourceID) throws OpenALException {
+		begin();
+		int result = backend.getSourcei(sourceID, AL_BUFFERS_PROCESSED);
+		end("alGetSourcei AL_BUFFERS_PROCESSED");
+		return result;
+	}
+
+	/** returns how many buffers are queued on the given source */
+	public static int getBuffersQueued(int sourceID) throws OpenALException {
+		begin();
+		int result = backend.getSourcei(sourceID, AL_BUFFERS_QUEUED);
+		end("alGetSourcei AL_BUFFERS_QUEUED");
+		return result;
+	}
+
+	/** returns the AL format for 16 bit PCM data with the given number of channels */
+	public static int getFormat(int channels) {
+		return channels > 1 ? AL_FORMAT_STEREO16 : AL_FORMAT_MONO16;
+	}
+
+	/** returns the number of channels of the given AL format */
+	public static int getChannels(int format) {
+		return (format == AL_FORMAT_STEREO16 || format == AL_FORMAT_STEREO8 || format == AL_FORMAT_STEREO_IMA4) ? 2 : 1;
 	}
 
 	/** returns the raw size of a buffer in bytes */
 	public static int getBufferSize(int id) {
-		int result = AL10.alGetBufferi(id, AL_SIZE);
-		checkALError();
+		begin();
+		int result = backend.getBufferi(id, AL_SIZE);
+		end("alGetBufferi AL_SIZE");
+		return result;
+	}
+
+	/** returns the sample rate of a buffer in Hz */
+	public static int getBufferFrequency(int id) {
+		begin();
+		int result = backend.getBufferi(id, AL_FREQUENCY);
+		end("alGetBufferi AL_FREQUENCY");
+		return result;
+	}
+
+	/** returns the bits per sample of a buffer */
+	public static int getBufferBits(int id) {
+		begin();
+		int result = backend.getBufferi(id, AL_BITS);
+		end("alGetBufferi AL_BITS");
 		return result;
 	}
 
 	public static int getBufferChannels(int id) {
-		int result = AL10.alGetBufferi(id, AL_CHANNELS);
-		checkALError();
+		begin();
+		int result = backend.getBufferi(id, AL_CHANNELS);
+		end("alGetBufferi AL_CHANNELS");
 		return result;
 	}
 
 	public static void setPosition(int sourceID, float posX, float posY, float posZ) throws OpenALException {
-		alSource3f(sourceID, AL_POSITION, posX, posY, posZ);
-		checkALError();
+		begin();
+		backend.source3f(sourceID, AL_POSITION, posX, posY, posZ);
+		end("alSource3f AL_POSITION");
 	}
 
 	public static void setVelocity(int sourceID, float velX, float velY, float velZ) throws OpenALException {
-		alSource3f(sourceID, AL_VELOCITY, velX, velY, velZ);
-		checkALError();
+		begin();
+		backend.source3f(sourceID, AL_VELOCITY, velX, velY, velZ);
+		end("alSource3f AL_VELOCITY");
 	}
 
 	public static void setLooping(int sourceID, boolean looping) throws OpenALException {
+		begin();
 		if (looping)
-			alSourcei(sourceID, AL_LOOPING, AL_TRUE);
+			backend.sourcei(sourceID, AL_LOOPING, AL_TRUE);
 		else
-			alSourcei(sourceID, AL_LOOPING, AL_FALSE);
-		checkALError();
+			backend.sourcei(sourceID, AL_LOOPING, AL_FALSE);
+		end("alSourcei AL_LOOPING");
 	}
 
 	public static void setPitch(int sourceID, float pitch) throws OpenALException {
-		alSourcef(sourceID, AL_PITCH, pitch);
-		checkALError();
+		begin();
+		backend.sourcef(sourceID, AL_PITCH, pitch);
+		end("alSourcef AL_PITCH");
 	}
 
 	public static void setGain(int sourceID, float gain) throws OpenALException {
-		alSourcef(sourceID, AL_GAIN, gain);
-		checkALError();
+		begin();
+		backend.sourcef(sourceID, AL_GAIN, gain);
+		end("alSourcef AL_GAIN");
 	}
 
 	public static void setOffset(int sourceID, int bufferSize, float offset) throws OpenALException {
-		alSourcei(sourceID, AL_BYTE_OFFSET, (int) (offset * bufferSize));
-		checkALError();
+		begin();
+		backend.sourcei(sourceID, AL_BYTE_OFFSET, (int) (offset * bufferSize));
+		end("alSourcei AL_BYTE_OFFSET");
+	}
+
+	/** Sets the playback position of the given source in bytes, counted from the start of its queue */
+	public static void setByteOffset(int sourceID, int bytes) throws OpenALException {
+		begin();
+		backend.sourcei(sourceID, AL_BYTE_OFFSET, bytes);
+		end("alSourcei AL_BYTE_OFFSET");
 	}
 
 	public static int getByteOffset(int sourceID) throws OpenALException {
-		int result = alGetSourcei(sourceID, AL_BYTE_OFFSET);
-		checkALError();
+		begin();
+		int result = backend.getSourcei(sourceID, AL_BYTE_OFFSET);
+		end("alGetSourcei AL_BYTE_OFFSET");
 		return result;
 	}
 
 	/** Retrieves the state of the given source. Can be something like initial, playing, paused, stop etc. */
 	public static int getSourceState(int sourceID) throws OpenALException {
-		int result = alGetSourcei(sourceID, AL_SOURCE_STATE);
-		checkALError();
+		begin();
+		int result = backend.getSourcei(sourceID, AL_SOURCE_STATE);
+		end("alGetSourcei AL_SOURCE_STATE");
 		return result;
 	}
 
 	/** Sets the global rolloff factor. (Lowering of volume over distance) */
 	public static void setRolloffFactor(int sourceID, float factor) {
-		alSourcef(sourceID, AL_ROLLOFF_FACTOR, factor);
+		begin();
+		backend.sourcef(sourceID, AL_ROLLOFF_FACTOR, factor);
+		end("alSourcef AL_ROLLOFF_FACTOR");
 	}
 
 	/**
 	 * To activate an additional extension, you need to check for its presence. This returns whether .ogg vorbis is supported or not. .ogg files are converted to PCM data via JOrbis anyway, because the vorbis extension is not supported anymore
 	 */
 	public static boolean initVorbisExtension() {
-		if (alIsExtensionPresent("AL_EXT_vorbis")) {
-			checkALError();
-			return true;
-		} else {
-			checkALError();
-			return false;
-		}
+		begin();
+		boolean present = backend.isExtensionPresent("AL_EXT_vorbis");
+		end("alIsExtensionPresent");
+		return present;
 	}
 
 	/**
@@ -184,89 +304,69 @@ public class ALHelper {
 	 *            float[]{x, y, z} representing the normalized listener's upside direction
 	 */
 	public static void setListener(float[] position, float[] velocity, float[] orientationAt, float[] orientationUp) {
-		alListener3f(AL_POSITION, position[0], position[1], position[2]);
-		checkALError();
-		alListener3f(AL_VELOCITY, velocity[0], velocity[1], velocity[2]);
-		checkALError();
-		FloatBuffer ori = BufferUtils.createFloatBuffer(6);
-		ori.put(0, orientationAt[0]);
-		ori.put(1, orientationAt[1]);
-		ori.put(2, orientationAt[2]);
-		ori.put(3, orientationUp[0]);
-		ori.put(4, orientationUp[1]);
-		ori.put(5, orientationUp[2]);
-		alListener(AL_ORIENTATION, ori);
+		setListener(position[0], position[1], position[2], velocity[0], velocity[1], velocity[2], orientationAt[0], orientationAt[1], orientationAt[2], orientationUp[0], orientationUp[1], orientationUp[2]);
+	}
+
+	/** Like setListener(float[], float[], float[], float[]), without any arrays. Doesn't allocate anything */
+	public static void setListener(float posX, float posY, float posZ, float velX, float velY, float velZ, float atX, float atY, float atZ, float upX, float upY, float upZ) {
+		begin();
+		backend.listener3f(AL_POSITION, posX, posY, posZ);
+		end("alListener3f AL_POSITION");
+		begin();
+		backend.listener3f(AL_VELOCITY, velX, velY, velZ);
+		end("alListener3f AL_VELOCITY");
+		orientation.put(0, atX);
+		orientation.put(1, atY);
+		orientation.put(2, atZ);
+		orientation.put(3, upX);
+		orientation.put(4, upY);
+		orientation.put(5, upZ);
+		begin();
+		backend.listenerOrientation(orientation);
 		//alListenerf(AL_REFERENCE_DISTANCE, 0f);
-		checkALError();
+		end("alListener AL_ORIENTATION");
 	}
 
 	/** Frees the given source */
 	public static void destroySource(int sourceID) throws OpenALException {
-		alDeleteSources(sourceID);
-		checkALError();
+		begin();
+		backend.deleteSource(sourceID);
+		end("alDeleteSources");
 	}
 
 	/** Frees the given buffer (frees the audio data) */
 	public static void destroyBuffer(int bufferID) throws OpenALException {
-		alDeleteBuffers(bufferID);
-		checkALError();
+		begin();
+		backend.deleteBuffer(bufferID);
+		end("alDeleteBuffers");
 	}
 
 	/** Frees the given sources */
 	public static void destroySources(int[] sourceIDs) throws OpenALException {
 		IntBuffer intBuffer = BufferUtils.createIntBuffer(sourceIDs.length);
 		intBuffer.put(sourceIDs);
-		alDeleteSources(intBuffer);
-		checkALError();
+		intBuffer.flip();
+		begin();
+		backend.deleteSources(intBuffer);
+		end("alDeleteSources");
 	}
 
 	/** Frees the given buffers (frees the audio data) */
 	public static void destroyBuffers(int[] bufferIDs) throws OpenALException {
 		IntBuffer intBuffer = BufferUtils.createIntBuffer(bufferIDs.length);
 		intBuffer.put(bufferIDs);
-		alDeleteBuffers(intBuffer);
-		checkALError();
+		intBuffer.flip();
+		begin();
+		backend.deleteBuffers(intBuffer);
+		end("alDeleteBuffers");
 	}
 
-	/** reads attributes from the current device and stores it in pseudo constants */
+	/** reads attributes from the current device and stores it in pseudo constants, including which optional buffer formats it supports */
 	public static void readDeviceAttributes() {
-
-		ALCdevice device = AL.getDevice();
-
-		IntBuffer buffer = BufferUtils.createIntBuffer(1);
-
-		alcGetInteger(device, ALC_ATTRIBUTES_SIZE, buffer);
-		checkALCError();
-
-		int length = buffer.get(0);
-		buffer = BufferUtils.createIntBuffer(length);
-
-		alcGetInteger(device, ALC_ALL_ATTRIBUTES, buffer);
-		checkALCError();
-
-		for (int i = 0; i + 1 < buffer.limit(); i += 2) {
-			if (buffer.get(i) == ALC_MONO_SOURCES) {
-				ALHelper.MONO_SOURCES = buffer.get(i + 1);
-				//System.out.println("ALC_MONO_SOURCES: " + buffer.get(i + 1));
-			} else if (buffer.get(i) == ALC_STEREO_SOURCES) {
-				ALHelper.STEREO_SOURCES = buffer.get(i + 1);
-				//System.out.println("ALC_STEREO_SOURCES: " + buffer.get(i + 1));
-			} else if (buffer.get(i) == ALC_FREQUENCY) {
-				ALHelper.FREQUENCY = buffer.get(i + 1);
-				//System.out.println("ALC_FREQUENCY: " + buffer.get(i + 1));
-			} else if (buffer.get(i) == AL_BUFFER) {
-				//System.out.println("AL_BUFFER: " + buffer.get(i + 1));
-			} else if (buffer.get(i) == ALC_REFRESH) {
-				//System.out.println("ALC_REFRESH: " + buffer.get(i + 1));
-			} else if (buffer.get(i) == EFX10.ALC_MAX_AUXILIARY_SENDS) {
-				//System.out.println("ALC_MAX_AUXILIARY_SENDS: " + buffer.get(i + 1));
-			} else {
-				//System.out.println("unspecified: " + buffer.get(i) + " > " + buffer.get(i + 1));
-			}
-
-		}
-		//System.out.println("Buffer content: "+buffer.get(0));
-
+		backend.readDeviceAttributes();
+		begin();
+		IMA4 = backend.isExtensionPresent("AL_EXT_IMA4");
+		end("alIsExtensionPresent");
 	}
 
 	/** returns a String representing the given AL error id */
@@ -310,14 +410,129 @@ public class ALHelper {
 	}
 
 	public static void checkALError() throws OpenALException {
-		int error = alGetError();
+		int error = backend.getError();
 		if (error != AL_NO_ERROR) {
 			throw new OpenALException(getALErrorString(error));
 		}
 	}
 
+	/** Sets how errors of AL calls get detected, one of CHECK_STRICT, CHECK_DEFERRED and CHECK_TRACING */
+	public static void setCheckMode(int mode) {
+		checkMode = mode;
+		callsSinceCheck = 0;
+	}
+
+	public static int getCheckMode() {
+		return checkMode;
+	}
+
+	/** marks the start of an AL call */
+	private static void begin() {
+		if (checkMode == CHECK_TRACING)
+			callStart = System.nanoTime();
+	}
+
+	/** marks the end of an AL call. Depending on the check mode, this checks for errors, remembers the call for the next deferred check or records its duration */
+	private static void end(String call) throws OpenALException {
+		switch (checkMode) {
+		case CHECK_DEFERRED:
+			recentCalls[callsSinceCheck % RECENT_CALLS] = call;
+			callsSinceCheck++;
+			break;
+		case CHECK_TRACING:
+			long duration = System.nanoTime() - callStart;
+			CallStats stats = callStats.get(call);
+			if (stats == null) {
+				stats = new CallStats();
+				callStats.put(call, stats);
+			}
+			stats.record(duration);
+			// tracing checks every call as well, so errors can be attributed
+			check(call);
+			break;
+		default:
+			check(call);
+		}
+	}
+
+	/** throws if the given call raised an error */
+	private static void check(String call) throws OpenALException {
+		int error = backend.getError();
+		if (error != AL_NO_ERROR)
+			throw new OpenALException(getALErrorString(error) + " in " + call);
+	}
+
+	/** In CHECK_DEFERRED mode, checks for an error raised by any AL call since the last check. The exception names the calls made since then. Gets called by SoundManager.update() */
+	public static void checkDeferredErrors() throws OpenALException {
+		if (checkMode != CHECK_DEFERRED)
+			return;
+		int calls = callsSinceCheck;
+		callsSinceCheck = 0;
+		int error = backend.getError();
+		if (error == AL_NO_ERROR)
+			return;
+		StringBuilder message = new StringBuilder(getALErrorString(error));
+		message.append(" in one of the last ").append(calls).append(" calls:");
+		for (int i = Math.max(0, calls - RECENT_CALLS); i < calls; i++) {
+			message.append(' ').append(recentCalls[i % RECENT_CALLS]);
+		}
+		throw new OpenALException(message.toString());
+	}
+
+	/** Returns the call counts and timings recorded in CHECK_TRACING mode, by AL function */
+	public static Map<String, CallStats> getCallStats() {
+		return Collections.unmodifiableMap(callStats);
+	}
+
+	public static void resetCallStats() {
+		callStats.clear();
+	}
+
+	/** Returns a table of the call counts and timings recorded in CHECK_TRACING mode, most expensive calls first */
+	public static String getTraceReport() {
+		List<Map.Entry<String, CallStats>> entries = new ArrayList<Map.Entry<String, CallStats>>(callStats.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, CallStats>>() {
+			@Override
+			public int compare(Map.Entry<String, CallStats> a, Map.Entry<String, CallStats> b) {
+				return Long.compare(b.getValue().getTotalNanos(), a.getValue().getTotalNanos());
+			}
+		});
+		StringBuilder report = new StringBuilder(String.format("%-40s %10s %12s %10s %10s%n", "call", "count", "total ns", "avg ns", "max ns"));
+		for (Map.Entry<String, CallStats> entry : entries) {
+			CallStats stats = entry.getValue();
+			report.append(String.format("%-40s %10d %12d %10d %10d%n", entry.getKey(), stats.getCount(), stats.getTotalNanos(), stats.getTotalNanos() / stats.getCount(), stats.getMaxNanos()));
+		}
+		return report.toString();
+	}
+
+	/** Call count and timings of one AL function, recorded in CHECK_TRACING mode */
+	public static class CallStats {
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+		private void record(long nanos) {
+			count++;
+			totalNanos += nanos;
+			if (nanos > maxNanos)
+				maxNanos = nanos;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+	}
+
 	public static void checkALCError() throws OpenALException {
-		int error = alGetError();
+		int error = backend.getDeviceError();
 		if (error != ALC_NO_ERROR) {
 			throw new OpenALException(getALCErrorString(error));
 		}
@@ -6,14 +6,39 @@ import org.lwjgl.openal.OpenALException;
 public class ALSource {
 
 	private final int sourceID;
-	private ALBuffer buffer = null;
+	// fields getOffset() reads are volatile, so it gives a consistent estimate on other threads
+	private volatile ALBuffer buffer = null;
 	public int priority = Sound.PRIORITY_MODERATE;
 	private int byteOffset;
-	private float offset;
-	private int state;
+	private volatile float offset;
+	private volatile int state;
 
 	private Sound sound;
 
+	// managed by VoiceAllocator: the priority list this source is in (-1 while free) and its neighbours there
+	int bucket = -1;
+	ALSource previous, next;
+
+	// properties that have been set in batched mode but not sent to the sound device yet, see flush()
+	private static final int DIRTY_POSITION = 1;
+	private static final int DIRTY_VELOCITY = 2;
+	private static final int DIRTY_GAIN = 4;
+	private static final int DIRTY_PITCH = 8;
+	private int dirty = 0;
+	private float posX, posY, posZ, velX, velY, velZ, gain;
+	private volatile float pitch; // read by getOffset()
+	// the values last sent to the sound device. NaN never equals anything, so the first value always gets sent
+	private float sentPosX = Float.NaN, sentPosY = Float.NaN, sentPosZ = Float.NaN;
+	private float sentVelX = Float.NaN, sentVelY = Float.NaN, sentVelZ = Float.NaN;
+	private float sentGain = Float.NaN, sentPitch = Float.NaN;
+
+	// polling: state and offset are only queried from the sound device when something is expected to have changed, see schedulePoll()
+	private static final long LOOP_POLL_INTERVAL = 1000000000L; // looping sources only stop when told to, so an occasional check is enough
+	private static final long MAX_POLL_INTERVAL = 250000000L; // one-shots get checked at least this often in case the end estimate is off
+	private volatile long lastPoll; // SoundManager time of the last query, the offset is estimated from there on
+	private long nextPoll = 0; // SoundManager time from which on update() should query again
+	private volatile boolean looping = false;
+
 	/** Creates a new ALSource object that is linked to a new source on the sound device */
 	public ALSource() {
 		this.sourceID = ALHelper.genSource();
@@ -24,11 +49,22 @@ public class ALSource {
 	public void uncouple() {
 		sound.setUncoupled();
 		sound = null;
+		// an idle source must not keep its buffer or queued stream chunks, they couldn't be deleted otherwise
+		setBuffer(null);
 	}
 
 	/** couples this source with a new sound to be played */
 	public void couple(Sound sound) {
 		this.sound = sound;
+		// a reused source would still report the stopped state of its previous sound
+		ALHelper.rewind(sourceID);
+		state = AL10.AL_INITIAL;
+		pollNow();
+	}
+
+	/** returns the sound this source is coupled with, or null */
+	Sound getSound() {
+		return sound;
 	}
 
 	/** returns whether this source is currently coupled to a sound */
@@ -47,26 +83,73 @@ public class ALSource {
 			e.printStackTrace();
 			System.out.println("error fetching offset and state for Source with ID " + sourceID);
 		}
-		offset = (float) byteOffset / buffer.getSize();
-		if (isStopped() && sound.isLooping()) {
-			// TODO distinguish between multi-buffer handling
-			sound.play();
+		lastPoll = SoundManager.getTime();
+		if (buffer != null)
+			offset = (float) byteOffset / buffer.getSize();
+		sound.update();
+		// the sound didn't restart itself, so this source is free for other sounds again
+		if (isStopped())
+			SoundManager.releaseSource(this);
+		else
+			schedulePoll();
+	}
+
+	/** returns whether update() should query the sound device for this source at the given SoundManager time */
+	boolean isPollDue(long time) {
+		return !isUncoupled() && time >= nextPoll;
+	}
+
+	/** makes the next update() query this source, e.g. because its playback was changed in a way the estimate can't follow */
+	private void pollNow() {
+		nextPoll = 0;
+	}
+
+	/** decides when this source has to be queried next, based on what is playing and when it is expected to end */
+	private void schedulePoll() {
+		if (state != AL10.AL_PLAYING) {
+			// paused and initial sources only change state through play() and stop(), which reschedule
+			nextPoll = Long.MAX_VALUE;
+			return;
+		}
+		float duration = buffer == null ? 0 : buffer.getDuration();
+		if (duration <= 0) {
+			// streamed sounds have to be refilled, so they are checked every update
+			nextPoll = lastPoll;
+		} else if (looping) {
+			nextPoll = lastPoll + LOOP_POLL_INTERVAL;
+		} else {
+			long remaining = (long) ((1 - offset) * duration / getPlaybackPitch() * 1e9);
+			nextPoll = lastPoll + Math.max(0, Math.min(remaining, MAX_POLL_INTERVAL));
 		}
 	}
 
+	/** returns the pitch the source plays with, as far as it is known */
+	private float getPlaybackPitch() {
+		return pitch > 0 ? pitch : 1;
+	}
+
 	/** plays the sound this source is coupled with */
 	public void play() {
+		// pending properties have to be in place before the playback starts
+		flush();
 		ALHelper.play(sourceID);
+		state = AL10.AL_PLAYING;
+		lastPoll = SoundManager.getTime();
+		pollNow();
 	}
 
 	/** stops the playback of the sound this source is coupled with */
 	public void stop() {
 		ALHelper.stop(sourceID);
+		state = AL10.AL_STOPPED;
+		// the next update() releases the source, unless its sound does so right away
+		pollNow();
 	}
 
 	/** Pauses the playback of the sound this source is coupled with */
 	public void pause() {
 		ALHelper.pause(sourceID);
+		state = AL10.AL_PAUSED;
 	}
 
 	/** returns whether the playback is stopped or not */
@@ -93,15 +176,40 @@ public class ALSource {
 		return sourceID;
 	}
 
+	/** Asks the sound device for the current playback offset (between 0 and 1), instead of returning the one fetched by the last update */
+	public float queryOffset() {
+		if (buffer == null)
+			return offset;
+		return (float) ALHelper.getByteOffset(sourceID) / buffer.getSize();
+	}
+
 	/** Gets the current playback offset (between 0 and 1) */
 	public float getOffset() {
-		return offset;
+		if (state != AL10.AL_PLAYING || buffer == null)
+			return offset;
+		float duration = buffer.getDuration();
+		if (duration <= 0)
+			return offset;
+		// estimated from the last query, the source isn't queried every update
+		float estimate = offset + (SoundManager.getTime() - lastPoll) / 1e9f * getPlaybackPitch() / duration;
+		if (estimate >= 1)
+			estimate = looping ? estimate - (int) estimate : 1;
+		return estimate;
 	}
 
-	/** Set a new buffer (audio file) to be played */
+	/** Set a new buffer (audio file) to be played. null detaches all buffers, including queued ones */
 	public void setBuffer(ALBuffer buffer) {
+		ALBuffer previous = this.buffer;
+		if (buffer != null)
+			buffer.bindings++;
 		this.buffer = buffer;
-		ALHelper.bindBufferToSource(buffer.getBufferID(), sourceID);
+		ALHelper.bindBufferToSource(buffer == null ? 0 : buffer.getBufferID(), sourceID);
+		pollNow();
+		// an unload that had to wait for this source can happen now
+		if (previous != null && --previous.bindings == 0 && previous.unloadWhenUnbound) {
+			previous.unloadWhenUnbound = false;
+			ALBufferBank.unloadBuffer(previous);
+		}
 	}
 
 	public ALBuffer getBuffer() {
@@ -109,27 +217,79 @@ public class ALSource {
 	}
 
 	public void setPosition(float posX, float posY, float posZ) {
-		ALHelper.setPosition(sourceID, posX, posY, posZ);
+		this.posX = posX;
+		this.posY = posY;
+		this.posZ = posZ;
+		dirty |= DIRTY_POSITION;
+		if (!SoundManager.isBatched())
+			flush();
 	}
 
 	public void setVelocity(float velX, float velY, float velZ) {
-		ALHelper.setVelocity(sourceID, velX, velY, velZ);
+		this.velX = velX;
+		this.velY = velY;
+		this.velZ = velZ;
+		dirty |= DIRTY_VELOCITY;
+		if (!SoundManager.isBatched())
+			flush();
 	}
 
 	public void setGain(float gain) {
-		ALHelper.setGain(sourceID, gain);
+		this.gain = gain;
+		dirty |= DIRTY_GAIN;
+		if (!SoundManager.isBatched())
+			flush();
 	}
 
 	public void setPitch(float pitch) {
-		ALHelper.setPitch(sourceID, pitch);
+		if (pitch != this.pitch)
+			pollNow();
+		this.pitch = pitch;
+		dirty |= DIRTY_PITCH;
+		if (!SoundManager.isBatched())
+			flush();
+	}
+
+	/** Sends all properties that have been set since the last flush to the sound device, skipping those that haven't actually changed */
+	public void flush() {
+		if (dirty == 0)
+			return;
+		if ((dirty & DIRTY_POSITION) != 0 && (posX != sentPosX || posY != sentPosY || posZ != sentPosZ)) {
+			ALHelper.setPosition(sourceID, posX, posY, posZ);
+			sentPosX = posX;
+			sentPosY = posY;
+			sentPosZ = posZ;
+		}
+		if ((dirty & DIRTY_VELOCITY) != 0 && (velX != sentVelX || velY != sentVelY || velZ != sentVelZ)) {
+			ALHelper.setVelocity(sourceID, velX, velY, velZ);
+			sentVelX = velX;
+			sentVelY = velY;
+			sentVelZ = velZ;
+		}
+		if ((dirty & DIRTY_GAIN) != 0 && gain != sentGain) {
+			ALHelper.setGain(sourceID, gain);
+			sentGain = gain;
+		}
+		if ((dirty & DIRTY_PITCH) != 0 && pitch != sentPitch) {
+			ALHelper.setPitch(sourceID, pitch);
+			sentPitch = pitch;
+		}
+		dirty = 0;
 	}
 
 	public void setOffset(float offset) {
+		// streamed sounds have no single buffer to seek in
+		if (buffer == null)
+			return;
 		ALHelper.setOffset(sourceID, buffer.getSize(), offset);
+		this.offset = offset;
+		pollNow();
 	}
 
 	public void setLooping(boolean looping) {
 		ALHelper.setLooping(sourceID, looping);
+		this.looping = looping;
+		pollNow();
 	}
 
 	public boolean equals(Object o) {
@@ -0,0 +1,48 @@
+package de.felk.JOpenAL;
+
+/**
+ * Thread that drives the sound system on its own: once per tick it runs the commands other threads queued up and calls SoundManager.update(). See SoundManager.startAudioThread()
+ */
+class AudioThread extends Thread {
+
+	private final CommandQueue commands;
+	private final long tickNanos;
+	private volatile boolean running = true;
+
+	AudioThread(CommandQueue commands, long tickNanos) {
+		super("JOpenAL audio");
+		setDaemon(true);
+		this.commands = commands;
+		this.tickNanos = tickNanos;
+	}
+
+	@Override
+	public void run() {
+		long nextTick = System.nanoTime();
+		while (running) {
+			commands.drain();
+			SoundManager.update();
+			nextTick += tickNanos;
+			long wait = nextTick - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					break;
+				}
+			} else {
+				// running late, don't try to catch up with a burst of ticks
+				nextTick = System.nanoTime();
+			}
+		}
+		// whatever got queued until the stop still happens
+		commands.drain();
+	}
+
+	/** makes the thread finish its current tick and exit */
+	void finish() {
+		running = false;
+		interrupt();
+	}
+
+}
@@ -0,0 +1,128 @@
+package de.felk.JOpenAL;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.lwjgl.LWJGLException;
+import org.lwjgl.openal.OpenALException;
+
+/**
+ * Loads a list of sound files in the background, like ALBufferBank.getSoundAsync(): the files get decoded on a pool of worker threads and uploaded by SoundManager.update(), as uploading needs the AL context. A sound created for one of the files meanwhile waits for the same load instead of starting another one. This also serves as progress handle, for example for loading screens
+ */
+public class BackgroundLoader {
+
+	private static ExecutorService executor;
+
+	private final int total;
+	private int loaded = 0;
+	private int failed = 0;
+	// loads that haven't been counted as loaded or failed yet
+	private final ArrayList<Pending> pending = new ArrayList<Pending>();
+
+	/** Starts loading the given files in the background */
+	BackgroundLoader(List<String> filenames) {
+		this.total = filenames.size();
+		for (String filename : filenames) {
+			pending.add(new Pending(filename, ALBufferBank.getSoundAsync(filename)));
+		}
+	}
+
+	/** returns the shared worker pool, one daemon thread per core */
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "JOpenAL decoder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/** Counts the files that have been uploaded or failed so far. SoundManager.update() calls this for every running loader */
+	public void upload() {
+		for (int i = pending.size() - 1; i >= 0; i--) {
+			Pending next = pending.get(i);
+			if (!next.load.isDone())
+				continue;
+			pending.remove(i);
+			try {
+				next.load.get();
+				loaded++;
+			} catch (ExecutionException e) {
+				failed(next.filename, e.getCause());
+			} catch (InterruptedException e) {
+				// can't happen, the load is done
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Blocks until every file has been decoded and uploaded. Has to be called from the thread owning the AL context */
+	public void finish() throws InterruptedException {
+		upload();
+		while (!pending.isEmpty()) {
+			Pending next = pending.remove(pending.size() - 1);
+			try {
+				// joins the load in progress, and uploads it right away on the AL thread
+				ALBufferBank.getSound(next.filename);
+				loaded++;
+			} catch (OpenALException | IOException | LWJGLException e) {
+				failed(next.filename, e);
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	private void failed(String filename, Throwable cause) {
+		failed++;
+		System.out.println("could not load " + filename);
+		cause.printStackTrace();
+	}
+
+	/** Returns the number of files this loader was started with */
+	public int getTotal() {
+		return total;
+	}
+
+	/** Returns the number of files that have been decoded and uploaded */
+	public int getLoaded() {
+		return loaded;
+	}
+
+	/** Returns the number of files that could not be loaded */
+	public int getFailed() {
+		return failed;
+	}
+
+	/** Returns the share of files that have been handled, between 0 and 1 */
+	public float getProgress() {
+		return total == 0 ? 1f : (float) (loaded + failed) / total;
+	}
+
+	/** Returns whether every file has been handled, either loaded or failed */
+	public boolean isDone() {
+		return loaded + failed == total;
+	}
+
+	private static class Pending {
+		private final String filename;
+		private final Future<ALBuffer> load;
+
+		private Pending(String filename, Future<ALBuffer> load) {
+			this.filename = filename;
+			this.load = load;
+		}
+	}
+
+}
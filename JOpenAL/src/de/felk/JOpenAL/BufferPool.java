@@ -0,0 +1,107 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Pool of direct ByteBuffers the decoders write into. Buffers are handed out in power-of-two size classes and go back into the pool once their data has been uploaded to the sound device, so loading many sounds doesn't leave lots of direct memory for the garbage collector to free. Safe to use from multiple threads
+ */
+public class BufferPool {
+
+	private static final int MIN_CLASS = 12; // smallest size class is 4 KiB
+	private static final int MAX_CLASS = 30; // largest size class is 1 GiB, larger requests aren't pooled
+
+	private static final ConcurrentLinkedQueue<ByteBuffer>[] pool = createPool();
+	private static long maxPooledBytes = 64L << 20; // how many bytes of idle buffers may be kept for reuse
+	private static final AtomicLong pooledBytes = new AtomicLong();
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	/** creates the queues of all size classes. Generic arrays can't be created directly */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ConcurrentLinkedQueue<ByteBuffer>[] createPool() {
+		ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[MAX_CLASS + 1];
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+			queues[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+		return queues;
+	}
+
+	/** Returns a cleared direct buffer in native byte order with at least the given capacity, and its limit set to the given size */
+	public static ByteBuffer acquire(int size) {
+		int sizeClass = getSizeClass(size);
+		if (sizeClass > MAX_CLASS) {
+			misses.incrementAndGet();
+			return BufferUtils.createByteBuffer(size);
+		}
+		ByteBuffer buffer = pool[sizeClass].poll();
+		if (buffer == null) {
+			misses.incrementAndGet();
+			buffer = BufferUtils.createByteBuffer(1 << sizeClass);
+		} else {
+			hits.incrementAndGet();
+			pooledBytes.addAndGet(-buffer.capacity());
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/** Gives a buffer obtained by acquire() back to the pool. The buffer must not be used afterwards */
+	public static void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		// only buffers of exactly one size class can have come from the pool
+		if (!buffer.isDirect() || Integer.bitCount(capacity) != 1)
+			return;
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		if (sizeClass < MIN_CLASS || sizeClass > MAX_CLASS)
+			return;
+		if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			// pool is full, leave this one to the garbage collector
+			pooledBytes.addAndGet(-capacity);
+			return;
+		}
+		pool[sizeClass].add(buffer);
+	}
+
+	/** returns the exponent of the smallest size class that fits the given size */
+	private static int getSizeClass(int size) {
+		if (size <= 1 << MIN_CLASS)
+			return MIN_CLASS;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/** Sets how many bytes of idle buffers may be kept for reuse */
+	public static void setMaxPooledBytes(long bytes) {
+		maxPooledBytes = bytes;
+	}
+
+	/** Returns the number of bytes idle buffers in the pool currently take */
+	public static long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/** Returns how many acquire() calls could be served from the pool */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/** Returns how many acquire() calls had to allocate a new buffer */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/** Frees all idle buffers and resets the counters */
+	public static void clear() {
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+			pool[i].clear();
+		}
+		pooledBytes.set(0);
+		hits.set(0);
+		misses.set(0);
+	}
+
+}
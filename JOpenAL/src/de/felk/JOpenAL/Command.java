@@ -0,0 +1,224 @@
+package de.felk.JOpenAL;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A call to the sound system made from another thread, queued for the audio thread (see SoundManager.startAudioThread()). Instead of being a closure, a command names its call by a number and carries the arguments in fields, so commands can be pooled: once the pool is warm, queueing a call doesn't allocate
+ */
+final class Command implements Runnable {
+
+	static final int SOUND_DESTROY = 0;
+	static final int SOUND_RANDOMIZE_BUFFER = 1;
+	static final int SOUND_NEXT_BUFFER = 2;
+	static final int SOUND_PLAY = 3;
+	static final int SOUND_STOP = 4;
+	static final int SOUND_PAUSE = 5;
+	static final int SOUND_SET_POSITION = 6;
+	static final int SOUND_SET_VELOCITY = 7;
+	static final int SOUND_SET_GAIN = 8;
+	static final int SOUND_UPDATE_GAIN = 9;
+	static final int SOUND_SET_PITCH = 10;
+	static final int SOUND_SET_OFFSET = 11;
+	static final int SOUND_SET_LOOPING = 12;
+	static final int SOUND_SET_CATEGORY = 13;
+	static final int SOUND_RANDOMIZE_PITCH = 14;
+	static final int SOUND_LOAD_BUFFERS = 15;
+	static final int PRELOAD_SOUNDS = 16;
+	static final int ADD_LOADER = 17;
+	static final int SET_LISTENER = 18;
+	static final int RECALCULATE_LISTENER = 19;
+	static final int PLAY_ONE_SHOT = 20;
+	static final int STOP_ONE_SHOT = 21;
+	static final int RESERVE_ONE_SHOTS = 22;
+	static final int SET_BATCHED = 23;
+	static final int UPDATE_CATEGORY_GAIN = 24;
+	static final int LOAD_GROUP = 25;
+	static final int RELEASE_GROUP = 26;
+
+	private static final int POOL_SIZE = 16384; // as many as fit into SoundManager's command queue, so a full queue doesn't allocate either
+	private static final ArrayBlockingQueue<Command> pool = new ArrayBlockingQueue<Command>(POOL_SIZE);
+
+	private int operation;
+	Object target; // the sound, buffer, group or loader the call is about, if any
+	Object argument;
+	final float[] values = new float[12]; // enough for setListener()
+	long number;
+	boolean flag;
+
+	/** queues the given call if calls from the current thread have to be queued. Returns whether it was queued, the caller has to make the call itself otherwise */
+	static boolean queue(int operation, Object target) {
+		if (!SoundManager.isQueued())
+			return false;
+		return submit(obtain(operation, target));
+	}
+
+	/** like queue(int, Object), for calls with a float argument */
+	static boolean queue(int operation, Object target, float value) {
+		if (!SoundManager.isQueued())
+			return false;
+		Command command = obtain(operation, target);
+		command.values[0] = value;
+		return submit(command);
+	}
+
+	/** like queue(int, Object), for calls with three float arguments such as a position */
+	static boolean queue(int operation, Object target, float x, float y, float z) {
+		if (!SoundManager.isQueued())
+			return false;
+		Command command = obtain(operation, target);
+		command.values[0] = x;
+		command.values[1] = y;
+		command.values[2] = z;
+		return submit(command);
+	}
+
+	/** like queue(int, Object), for calls with a boolean argument */
+	static boolean queue(int operation, Object target, boolean flag) {
+		if (!SoundManager.isQueued())
+			return false;
+		Command command = obtain(operation, target);
+		command.flag = flag;
+		return submit(command);
+	}
+
+	/** like queue(int, Object), for calls with an integer argument */
+	static boolean queue(int operation, Object target, long number) {
+		if (!SoundManager.isQueued())
+			return false;
+		Command command = obtain(operation, target);
+		command.number = number;
+		return submit(command);
+	}
+
+	/** like queue(int, Object), for calls with an object argument */
+	static boolean queue(int operation, Object target, Object argument) {
+		if (!SoundManager.isQueued())
+			return false;
+		Command command = obtain(operation, target);
+		command.argument = argument;
+		return submit(command);
+	}
+
+	/** returns a command from the pool, for calls with more arguments. The caller fills in the arguments and hands it to submit() */
+	static Command obtain(int operation, Object target) {
+		Command command = pool.poll();
+		if (command == null)
+			command = new Command();
+		command.operation = operation;
+		command.target = target;
+		return command;
+	}
+
+	/** queues the given command for the audio thread. Returns false if the audio thread is stopping and doesn't take commands anymore, then the command goes back to the pool and the caller has to make the call itself */
+	static boolean submit(Command command) {
+		if (SoundManager.enqueue(command))
+			return true;
+		command.recycle();
+		return false;
+	}
+
+	@Override
+	public void run() {
+		try {
+			execute();
+		} finally {
+			recycle();
+		}
+	}
+
+	private void recycle() {
+		target = null;
+		argument = null;
+		pool.offer(this);
+	}
+
+	/** makes the call on the audio thread, where it doesn't get queued again */
+	private void execute() {
+		switch (operation) {
+		case SOUND_DESTROY:
+			((Sound) target).destroy();
+			break;
+		case SOUND_RANDOMIZE_BUFFER:
+			((Sound) target).randomizeBuffer();
+			break;
+		case SOUND_NEXT_BUFFER:
+			((Sound) target).nextBuffer();
+			break;
+		case SOUND_PLAY:
+			((Sound) target).play();
+			break;
+		case SOUND_STOP:
+			((Sound) target).stop();
+			break;
+		case SOUND_PAUSE:
+			((Sound) target).pause();
+			break;
+		case SOUND_SET_POSITION:
+			((Sound) target).setPosition(values[0], values[1], values[2]);
+			break;
+		case SOUND_SET_VELOCITY:
+			((Sound) target).setVelocity(values[0], values[1], values[2]);
+			break;
+		case SOUND_SET_GAIN:
+			((Sound) target).setGain(values[0]);
+			break;
+		case SOUND_UPDATE_GAIN:
+			((Sound) target).updateGain();
+			break;
+		case SOUND_SET_PITCH:
+			((Sound) target).setPitch(values[0]);
+			break;
+		case SOUND_SET_OFFSET:
+			((Sound) target).setOffset(values[0]);
+			break;
+		case SOUND_SET_LOOPING:
+			((Sound) target).setLooping(flag);
+			break;
+		case SOUND_SET_CATEGORY:
+			((Sound) target).setCategory((SoundCategory) argument);
+			break;
+		case SOUND_RANDOMIZE_PITCH:
+			((Sound) target).randomizePitch(values[0]);
+			break;
+		case SOUND_LOAD_BUFFERS:
+			((Sound) target).loadBuffers((String[]) argument);
+			break;
+		case PRELOAD_SOUNDS:
+			SoundManager.preLoadSounds();
+			break;
+		case ADD_LOADER:
+			SoundManager.addLoader((BackgroundLoader) target);
+			break;
+		case SET_LISTENER:
+			SoundManager.setListener(values[0], values[1], values[2], values[3], values[4], values[5], values[6], values[7], values[8], values[9], values[10], values[11]);
+			break;
+		case RECALCULATE_LISTENER:
+			SoundManager.recalculateListener(values[0], values[1], values[2]);
+			break;
+		case PLAY_ONE_SHOT:
+			SoundManager.playOneShot((SoundCategory) argument, (ALBuffer) target, values[0], values[1], values[2], values[3], values[4], (int) number);
+			break;
+		case STOP_ONE_SHOT:
+			SoundManager.stopOneShot(number);
+			break;
+		case RESERVE_ONE_SHOTS:
+			SoundManager.reserveOneShots((int) number);
+			break;
+		case SET_BATCHED:
+			SoundManager.setBatched(flag);
+			break;
+		case UPDATE_CATEGORY_GAIN:
+			SoundManager.updateGain((SoundCategory) target);
+			break;
+		case LOAD_GROUP:
+			((SoundGroup) target).load();
+			break;
+		case RELEASE_GROUP:
+			((SoundGroup) target).release();
+			break;
+		default:
+			throw new IllegalStateException("unknown command " + operation);
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package de.felk.JOpenAL;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring buffer of commands for the audio thread. Any number of threads may add commands without locking, only the audio thread takes them out. Producers claim a slot by incrementing the tail and publish their command into it, the consumer frees a slot by clearing it and moving the head on
+ */
+class CommandQueue {
+
+	private final int mask;
+	private final AtomicReferenceArray<Runnable> commands;
+	private final long[] enqueueTimes; // written before the command is published, so the consumer sees it with the command
+	private final AtomicLong tail = new AtomicLong(); // next slot a producer claims
+	private volatile long head = 0; // next slot the consumer takes, only written by the consumer
+	private volatile boolean closed = false; // whether add() refuses commands, see close()
+	private final AtomicInteger adding = new AtomicInteger(); // producers between checking closed and publishing their command
+
+	// statistics, only written by the consumer
+	private volatile long executed = 0;
+	private volatile long totalLatency = 0;
+	private volatile long maxLatency = 0;
+	private volatile int maxDepth = 0;
+
+	/** @param capacity how many commands fit into the queue, rounded up to a power of two */
+	CommandQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		commands = new AtomicReferenceArray<Runnable>(size);
+		enqueueTimes = new long[size];
+	}
+
+	/** adds a command and returns true. If the queue is full, waits until the consumer made room. Returns false without adding it if the queue is closed */
+	boolean add(Runnable command) {
+		adding.incrementAndGet();
+		try {
+			if (closed)
+				return false;
+			long slot = tail.getAndIncrement();
+			while (slot - head > mask) {
+				Thread.yield();
+			}
+			int index = (int) slot & mask;
+			enqueueTimes[index] = System.nanoTime();
+			commands.lazySet(index, command);
+			return true;
+		} finally {
+			adding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * makes add() refuse commands from now on, and waits for the producers that are adding one right now. Afterwards a drain() runs every command that has been added. Must only be called by the consumer, or once the consumer stopped, as it drains while waiting for producers that wait for room
+	 */
+	void close() {
+		closed = true;
+		// a producer that saw the queue open has announced itself in adding before, so it can't be missed here
+		while (adding.get() > 0) {
+			drain();
+			Thread.yield();
+		}
+	}
+
+	/** makes add() take commands again */
+	void open() {
+		closed = false;
+	}
+
+	/** runs all commands that have been published so far, in the order their slots were claimed. Must only be called by the consumer */
+	void drain() {
+		int depth = getDepth();
+		if (depth > maxDepth)
+			maxDepth = depth;
+		long slot = head;
+		while (true) {
+			int index = (int) slot & mask;
+			Runnable command = commands.get(index);
+			// either empty, or a producer claimed the slot but hasn't published yet. Later commands wait for it to keep the order
+			if (command == null)
+				break;
+			long latency = System.nanoTime() - enqueueTimes[index];
+			commands.lazySet(index, null);
+			head = ++slot;
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			executed++;
+			totalLatency += latency;
+			if (latency > maxLatency)
+				maxLatency = latency;
+		}
+	}
+
+	/** returns how many commands are waiting at the moment */
+	int getDepth() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	int getMaxDepth() {
+		return maxDepth;
+	}
+
+	long getExecuted() {
+		return executed;
+	}
+
+	/** returns the average time in nanoseconds between adding a command and running it */
+	long getAverageLatency() {
+		long count = executed;
+		return count == 0 ? 0 : totalLatency / count;
+	}
+
+	long getMaxLatency() {
+		return maxLatency;
+	}
+
+	void resetStats() {
+		executed = 0;
+		totalLatency = 0;
+		maxLatency = 0;
+		maxDepth = 0;
+	}
+
+}
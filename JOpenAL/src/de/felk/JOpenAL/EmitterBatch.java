@@ -0,0 +1,227 @@
+package de.felk.JOpenAL;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Updates the positions and velocities of many sounds in one pass, for example sounds attached to particles. Sounds get added once and are addressed by handle; each frame the new values come in parallel arrays, three floats per sound, along with an array of the handles they belong to.
+ * <p>
+ * An update has two steps. prepare() compares the values with the ones it saw last and records only the changed ones. It doesn't touch the sounds or the sound device, so ranges of the arrays with distinct handles can be prepared on several threads at once. submit() then applies the recorded values to the sounds, touching only those that changed. With SoundManager.setBatched(true), the sound device gets each changed source property once per SoundManager.update()
+ */
+public class EmitterBatch {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// replaced as a whole when it grows, before size moves past the old capacity. So apply() on the audio thread, reading size first, always gets arrays large enough
+	private volatile Entries entries = new Entries(INITIAL_CAPACITY);
+	private volatile int size = 0; // handles in use are below this
+	private int[] freeHandles = new int[INITIAL_CAPACITY];
+	private int freeCount = 0;
+
+	private volatile int submitted = 0; // number of the last submit()
+	private int applied = 0; // number of the last submit() applied, only touched by the AL thread
+	private final Runnable applyCommand = new Runnable() {
+		public void run() {
+			apply(submitted);
+		}
+	};
+
+	/** Adds a sound to the batch and returns its handle. Must not be called while prepare() calls are running, while the audio thread may be applying a submit() meanwhile */
+	public int add(Sound sound) {
+		int handle = freeCount > 0 ? freeHandles[--freeCount] : size;
+		if (handle == entries.sounds.length)
+			entries = entries.copy(handle * 2, size);
+		Entries e = entries;
+		e.posX[handle] = sound.getPositionX();
+		e.posY[handle] = sound.getPositionY();
+		e.posZ[handle] = sound.getPositionZ();
+		e.velX[handle] = sound.getVelocityX();
+		e.velY[handle] = sound.getVelocityY();
+		e.velZ[handle] = sound.getVelocityZ();
+		e.stamps[handle] = 0;
+		e.sounds[handle] = sound;
+		// publishes the entry to the audio thread
+		if (handle == size)
+			size = handle + 1;
+		return handle;
+	}
+
+	/** Removes the sound of the given handle from the batch. The handle may get reused by the next add(). Must not be called while prepare() calls are running, while the audio thread may be applying a submit() meanwhile */
+	public void remove(int handle) {
+		Sound[] sounds = entries.sounds;
+		if (sounds[handle] == null)
+			return;
+		sounds[handle] = null;
+		if (freeCount == freeHandles.length) {
+			int[] newFreeHandles = new int[freeHandles.length * 2];
+			System.arraycopy(freeHandles, 0, newFreeHandles, 0, freeCount);
+			freeHandles = newFreeHandles;
+		}
+		freeHandles[freeCount++] = handle;
+	}
+
+	/** Returns the sound of the given handle, or null if the handle isn't in use */
+	public Sound get(int handle) {
+		return handle < size ? entries.sounds[handle] : null;
+	}
+
+	/**
+	 * Records the new values of the entries from to to (exclusive) for the next submit(). Can be called from any thread, also from several at once for ranges that don't share handles
+	 * 
+	 * @param handles
+	 *            handles of the sounds the entries belong to
+	 * @param positions
+	 *            x, y and z of each entry's position
+	 * @param velocities
+	 *            x, y and z of each entry's velocity, or null to leave the velocities as they are
+	 * @return how many entries changed
+	 */
+	public int prepare(int[] handles, float[] positions, float[] velocities, int from, int to) {
+		int stamp = submitted + 1;
+		Entries e = entries;
+		float[] posX = e.posX, posY = e.posY, posZ = e.posZ, velX = e.velX, velY = e.velY, velZ = e.velZ;
+		int[] stamps = e.stamps;
+		int changed = 0;
+		for (int i = from; i < to; i++) {
+			int handle = handles[i];
+			int j = i * 3;
+			boolean dirty = false;
+			float x = positions[j], y = positions[j + 1], z = positions[j + 2];
+			if (x != posX[handle] || y != posY[handle] || z != posZ[handle]) {
+				posX[handle] = x;
+				posY[handle] = y;
+				posZ[handle] = z;
+				dirty = true;
+			}
+			if (velocities != null) {
+				x = velocities[j];
+				y = velocities[j + 1];
+				z = velocities[j + 2];
+				if (x != velX[handle] || y != velY[handle] || z != velZ[handle]) {
+					velX[handle] = x;
+					velY[handle] = y;
+					velZ[handle] = z;
+					dirty = true;
+				}
+			}
+			if (dirty) {
+				stamps[handle] = stamp;
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/** Like prepare(int[], float[], float[], int, int), reading the values from buffers at their absolute indices, for example ones shared with a particle system on the GPU */
+	public int prepare(int[] handles, FloatBuffer positions, FloatBuffer velocities, int from, int to) {
+		int stamp = submitted + 1;
+		Entries e = entries;
+		float[] posX = e.posX, posY = e.posY, posZ = e.posZ, velX = e.velX, velY = e.velY, velZ = e.velZ;
+		int[] stamps = e.stamps;
+		int changed = 0;
+		for (int i = from; i < to; i++) {
+			int handle = handles[i];
+			int j = i * 3;
+			boolean dirty = false;
+			float x = positions.get(j), y = positions.get(j + 1), z = positions.get(j + 2);
+			if (x != posX[handle] || y != posY[handle] || z != posZ[handle]) {
+				posX[handle] = x;
+				posY[handle] = y;
+				posZ[handle] = z;
+				dirty = true;
+			}
+			if (velocities != null) {
+				x = velocities.get(j);
+				y = velocities.get(j + 1);
+				z = velocities.get(j + 2);
+				if (x != velX[handle] || y != velY[handle] || z != velZ[handle]) {
+					velX[handle] = x;
+					velY[handle] = y;
+					velZ[handle] = z;
+					dirty = true;
+				}
+			}
+			if (dirty) {
+				stamps[handle] = stamp;
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/** Applies everything prepared since the last submit() to the sounds. Has to be called once all prepare() calls for the frame have returned. While the audio thread runs, the audio thread applies the values on its next tick, and preparing the next frame may already begin */
+	public void submit() {
+		int number = submitted + 1;
+		submitted = number;
+		// the same command every frame, so submitting doesn't allocate
+		if (SoundManager.isQueued() && SoundManager.enqueue(applyCommand))
+			return;
+		apply(number);
+	}
+
+	/** Prepares and submits the first count entries in one go */
+	public void update(int[] handles, float[] positions, float[] velocities, int count) {
+		prepare(handles, positions, velocities, 0, count);
+		submit();
+	}
+
+	/** Like update(int[], float[], float[], int), reading the values from buffers */
+	public void update(int[] handles, FloatBuffer positions, FloatBuffer velocities, int count) {
+		prepare(handles, positions, velocities, 0, count);
+		submit();
+	}
+
+	/**
+	 * applies the entries stamped after the last applied submit() up to the given one. Entries a prepare() for the following frame stamped already get applied as well, and again with the submit() they belong to, so none gets lost
+	 */
+	private void apply(int number) {
+		if (number <= applied)
+			return;
+		int last = applied;
+		// size first, the entries read afterwards are at least that large
+		int count = size;
+		Entries e = entries;
+		for (int handle = 0; handle < count; handle++) {
+			Sound sound = e.sounds[handle];
+			if (sound == null || e.stamps[handle] <= last)
+				continue;
+			sound.setPosition(e.posX[handle], e.posY[handle], e.posZ[handle]);
+			sound.setVelocity(e.velX[handle], e.velY[handle], e.velZ[handle]);
+		}
+		applied = number;
+	}
+
+	/** the arrays of all entries, indexed by handle */
+	private static class Entries {
+		private final Sound[] sounds;
+		// the values prepare() saw last
+		private final float[] posX, posY, posZ, velX, velY, velZ;
+		// number of the submit() that has to apply the entry's values, see apply()
+		private final int[] stamps;
+
+		private Entries(int capacity) {
+			sounds = new Sound[capacity];
+			posX = new float[capacity];
+			posY = new float[capacity];
+			posZ = new float[capacity];
+			velX = new float[capacity];
+			velY = new float[capacity];
+			velZ = new float[capacity];
+			stamps = new int[capacity];
+		}
+
+		/** returns a larger copy of the first count entries */
+		private Entries copy(int capacity, int count) {
+			Entries copy = new Entries(capacity);
+			System.arraycopy(sounds, 0, copy.sounds, 0, count);
+			System.arraycopy(posX, 0, copy.posX, 0, count);
+			System.arraycopy(posY, 0, copy.posY, 0, count);
+			System.arraycopy(posZ, 0, copy.posZ, 0, count);
+			System.arraycopy(velX, 0, copy.velX, 0, count);
+			System.arraycopy(velY, 0, copy.velY, 0, count);
+			System.arraycopy(velZ, 0, copy.velZ, 0, count);
+			System.arraycopy(stamps, 0, copy.stamps, 0, count);
+			return copy;
+		}
+	}
+
+}
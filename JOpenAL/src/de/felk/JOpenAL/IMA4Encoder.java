@@ -0,0 +1,116 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import static org.lwjgl.openal.AL10.*;
+
+/**
+ * Encodes 16 bit PCM into IMA4 ADPCM as taken by OpenAL's AL_EXT_IMA4 extension, a quarter of the size. Pure Java without the sound device, so it can be used at load time as well as by offline tools. Blocks hold 65 sample frames: per channel a 4 byte header with the first sample and the step index, followed by the other 64 samples as 4 bit codes, interleaved per channel in groups of 8
+ */
+public class IMA4Encoder {
+
+	public static final int BLOCK_FRAMES = 65; // sample frames per block, the extension's default block alignment
+	public static final int BLOCK_SIZE = 36; // bytes per block and channel
+
+	private static final int[] STEP_SIZES = { 7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767 };
+	private static final int[] INDEX_ADJUST = { -1, -1, -1, -1, 2, 4, 6, 8 };
+
+	/** Returns whether the given AL format is one of the IMA4 formats */
+	public static boolean isIMA4(int format) {
+		return format == ALHelper.AL_FORMAT_MONO_IMA4 || format == ALHelper.AL_FORMAT_STEREO_IMA4;
+	}
+
+	/**
+	 * Encodes the given 16 bit PCM data. The last block gets padded with the last sample frame
+	 *
+	 * @param pcm
+	 *            mono or stereo 16 bit data in native byte order. Stays untouched
+	 * @return the encoded data in a pooled buffer, with an IMA4 format and the same sample rate
+	 */
+	public static PCMData encode(PCMData pcm) {
+		int format = pcm.getFormat();
+		if (format != AL_FORMAT_MONO16 && format != AL_FORMAT_STEREO16)
+			throw new IllegalArgumentException("only 16 bit PCM can be encoded, not format " + format);
+		int channels = ALHelper.getChannels(format);
+		ShortBuffer in = pcm.getData().slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+		int frames = in.remaining() / channels;
+		int blocks = (frames + BLOCK_FRAMES - 1) / BLOCK_FRAMES;
+		ByteBuffer out = BufferPool.acquire(blocks * BLOCK_SIZE * channels);
+
+		int[] index = new int[channels]; // carried over between blocks, so the step size doesn't have to adapt again
+		int[] codes = new int[channels];
+		int[] predicted = new int[channels];
+		for (int block = 0; block < blocks; block++) {
+			int first = block * BLOCK_FRAMES;
+			for (int c = 0; c < channels; c++) {
+				int sample = sample(in, frames, channels, first, c);
+				predicted[c] = sample;
+				out.put((byte) sample);
+				out.put((byte) (sample >> 8));
+				out.put((byte) index[c]);
+				out.put((byte) 0);
+			}
+			for (int i = 1; i < BLOCK_FRAMES; i++) {
+				for (int c = 0; c < channels; c++) {
+					int step = STEP_SIZES[index[c]];
+					int code = encodeSample(sample(in, frames, channels, first + i, c) - predicted[c], step);
+					// follow exactly what the decoder computes, so errors don't add up
+					int delta = delta(code, step);
+					predicted[c] += (code & 8) != 0 ? -delta : delta;
+					predicted[c] = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predicted[c]));
+					index[c] = Math.max(0, Math.min(STEP_SIZES.length - 1, index[c] + INDEX_ADJUST[code & 7]));
+					codes[c] |= code << ((i - 1) % 8 * 4);
+				}
+				// every 8 samples, each channel gets its 4 bytes of codes, lowest nibble first
+				if (i % 8 == 0) {
+					for (int c = 0; c < channels; c++) {
+						out.put((byte) codes[c]);
+						out.put((byte) (codes[c] >> 8));
+						out.put((byte) (codes[c] >> 16));
+						out.put((byte) (codes[c] >> 24));
+						codes[c] = 0;
+					}
+				}
+			}
+		}
+		out.flip();
+		return new PCMData(out, channels > 1 ? ALHelper.AL_FORMAT_STEREO_IMA4 : ALHelper.AL_FORMAT_MONO_IMA4, pcm.getSampleRate(), true);
+	}
+
+	/** returns the 4 bit code whose delta comes closest to the given difference: the sign bit and a magnitude of 0 to 7 */
+	private static int encodeSample(int difference, int step) {
+		int sign = difference < 0 ? 8 : 0;
+		int target = Math.abs(difference);
+		int magnitude = 0;
+		int error = Math.abs(target - delta(0, step));
+		// the deltas grow with the magnitude, so the search can stop once they move away
+		for (int m = 1; m < 8; m++) {
+			int e = Math.abs(target - delta(m, step));
+			if (e >= error)
+				break;
+			magnitude = m;
+			error = e;
+		}
+		return sign | magnitude;
+	}
+
+	/** returns the change of the prediction the magnitude of the given code stands for, rounded the way decoders compute it: about (2m + 1) / 8 steps */
+	private static int delta(int code, int step) {
+		int delta = step >> 3;
+		if ((code & 4) != 0)
+			delta += step;
+		if ((code & 2) != 0)
+			delta += step >> 1;
+		if ((code & 1) != 0)
+			delta += step >> 2;
+		return delta;
+	}
+
+	/** returns a sample of the input, repeating the last frame beyond its end */
+	private static int sample(ShortBuffer in, int frames, int channels, int frame, int channel) {
+		return in.get(Math.min(frame, frames - 1) * channels + channel);
+	}
+
+}
@@ -0,0 +1,113 @@
+package de.felk.JOpenAL;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Renders playback into a WAV file as fast as the CPU allows instead of in realtime. Needs a SoftwareMixer as backend. Time is taken from SoundManager's manual clock, which moves on by one block at a time: before each block the script gets to play, move and stop sounds, then SoundManager.update() runs and the block gets mixed and written. The same script therefore always renders the same file
+ */
+public class OfflineRenderer {
+
+	public static final int DEFAULT_BLOCK_FRAMES = 1024;
+
+	/** Drives the sounds of a render, like the game loop does in realtime */
+	public interface Script {
+
+		/**
+		 * Called before each block
+		 *
+		 * @param time
+		 *            audio time of the block's start in seconds
+		 */
+		public void update(double time);
+
+	}
+
+	private final SoftwareMixer mixer;
+	private final int blockFrames;
+	private double audioSeconds = 0;
+	private double cpuSeconds = 0;
+
+	public OfflineRenderer(SoftwareMixer mixer) {
+		this(mixer, DEFAULT_BLOCK_FRAMES);
+	}
+
+	/**
+	 * @param mixer
+	 *            the mixer set as backend with ALHelper.setBackend()
+	 * @param blockFrames
+	 *            how many frames get mixed per SoundManager.update(), the time resolution of the script
+	 */
+	public OfflineRenderer(SoftwareMixer mixer, int blockFrames) {
+		if (ALHelper.getBackend() != mixer)
+			throw new IllegalStateException("the mixer has to be the backend, see ALHelper.setBackend()");
+		this.mixer = mixer;
+		this.blockFrames = blockFrames;
+	}
+
+	/**
+	 * Renders the given length of audio into a stereo 16 bit WAV file. Switches SoundManager to the manual clock, if that hasn't been done before. The audio thread must not be running, as the render drives the updates itself
+	 *
+	 * @param wav
+	 *            file to write, gets replaced if it exists
+	 * @param seconds
+	 *            length of the rendered audio
+	 * @param script
+	 *            drives the sounds while rendering, null if they have all been set up before
+	 */
+	public void render(File wav, double seconds, Script script) throws IOException {
+		// the script's calls would only get queued, and the audio thread would update at its own pace
+		if (SoundManager.isAudioThreadRunning())
+			throw new IllegalStateException("the audio thread is running, see SoundManager.stopAudioThread()");
+		SoundManager.setManualClock(true);
+		int sampleRate = mixer.getSampleRate();
+		long totalFrames = (long) (seconds * sampleRate);
+		short[] block = new short[blockFrames * 2];
+		long startTime = SoundManager.getTime();
+		long startCpu = getCpuTime();
+		long frames = 0;
+		WavWriter writer = new WavWriter(wav, sampleRate, 2);
+		try {
+			while (frames < totalFrames) {
+				int count = (int) Math.min(blockFrames, totalFrames - frames);
+				if (script != null)
+					script.update((double) frames / sampleRate);
+				SoundManager.update();
+				mixer.mix(block, count);
+				writer.write(block, count * 2);
+				frames += count;
+				// computed from the frame count, so rounding doesn't add up over long renders
+				SoundManager.advanceClock(startTime + frames * 1000000000L / sampleRate - SoundManager.getTime());
+			}
+		} finally {
+			writer.close();
+		}
+		audioSeconds = (double) frames / sampleRate;
+		cpuSeconds = (getCpuTime() - startCpu) / 1e9;
+	}
+
+	/** Returns the length of the last render in seconds of audio */
+	public double getAudioSeconds() {
+		return audioSeconds;
+	}
+
+	/** Returns how long the last render took in seconds of CPU time of the rendering thread, or of wall time if the JVM can't measure CPU time */
+	public double getCpuSeconds() {
+		return cpuSeconds;
+	}
+
+	/** Returns how many seconds of audio the last render produced per CPU second, above 1 is faster than realtime */
+	public double getRealtimeFactor() {
+		return cpuSeconds > 0 ? audioSeconds / cpuSeconds : 0;
+	}
+
+	private static long getCpuTime() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled())
+			return threads.getCurrentThreadCpuTime();
+		return System.nanoTime();
+	}
+
+}
@@ -0,0 +1,190 @@
+package de.felk.JOpenAL;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.jcraft.jogg.Packet;
+import com.jcraft.jogg.Page;
+import com.jcraft.jogg.StreamState;
+import com.jcraft.jogg.SyncState;
+import com.jcraft.jorbis.Block;
+import com.jcraft.jorbis.Comment;
+import com.jcraft.jorbis.DspState;
+import com.jcraft.jorbis.Info;
+
+/** Decodes an .ogg vorbis file via JOrbis, one page at a time */
+public class OggStream implements PCMStream {
+
+	private static final int READ_SIZE = 4096;
+
+	private final File file;
+	private final byte[] content; // the file's content if held in memory, null to read the file
+	private InputStream inputStream;
+
+	private SyncState syncState;
+	private StreamState streamState;
+	private Page page;
+	private Packet packet;
+	private Info info;
+	private Comment comment;
+	private DspState dspState;
+	private Block block;
+
+	private float[][][] pcm = new float[1][][];
+	private int[] pcmIndex;
+	private boolean endOfStream;
+
+	public OggStream(File file) throws IOException {
+		this(file, null);
+	}
+
+	/** Decodes the given content of the given file, which then only names the stream */
+	public OggStream(File file, byte[] content) throws IOException {
+		this.file = file;
+		this.content = content;
+		open();
+	}
+
+	/** opens the file and reads the three vorbis headers, leaving the stream positioned at the first audio packet */
+	private void open() throws IOException {
+		inputStream = content != null ? new ByteArrayInputStream(content) : new FileInputStream(file);
+		syncState = new SyncState();
+		streamState = new StreamState();
+		page = new Page();
+		packet = new Packet();
+		info = new Info();
+		comment = new Comment();
+		dspState = new DspState();
+		endOfStream = false;
+
+		syncState.init();
+		info.init();
+		comment.init();
+
+		// the first page carries the identification header and determines the logical stream
+		if (!readPage())
+			throw new IOException("not an ogg vorbis file: " + file.getName());
+		streamState.init(page.serialno());
+		streamState.pagein(page);
+		if (streamState.packetout(packet) != 1 || info.synthesis_headerin(comment, packet) < 0)
+			throw new IOException("not an ogg vorbis file: " + file.getName());
+
+		// the comment and codebook headers follow
+		int headers = 1;
+		while (headers < 3) {
+			int result = streamState.packetout(packet);
+			if (result == 0) {
+				if (!readPage())
+					throw new IOException("end of file inside the vorbis headers: " + file.getName());
+				streamState.pagein(page);
+			} else if (result < 0 || info.synthesis_headerin(comment, packet) < 0) {
+				throw new IOException("corrupt vorbis header: " + file.getName());
+			} else {
+				headers++;
+			}
+		}
+
+		dspState.synthesis_init(info);
+		block = new Block(dspState);
+		pcmIndex = new int[info.channels];
+	}
+
+	/** reads the next page of the file into page. Returns false if the end of the file has been reached */
+	private boolean readPage() throws IOException {
+		while (true) {
+			int result = syncState.pageout(page);
+			if (result == 1)
+				return true;
+			if (result == 0) {
+				int index = syncState.buffer(READ_SIZE);
+				int bytes = inputStream.read(syncState.data, index, READ_SIZE);
+				if (bytes <= 0)
+					return false;
+				syncState.wrote(bytes);
+			}
+			// result < 0 means there was a hole in the data, just continue with the next page
+		}
+	}
+
+	/** feeds the next audio packet into the synthesizer. Returns false if there are no packets left */
+	private boolean nextPacket() throws IOException {
+		while (!endOfStream) {
+			int result = streamState.packetout(packet);
+			if (result == 1) {
+				if (block.synthesis(packet) == 0)
+					dspState.synthesis_blockin(block);
+				return true;
+			}
+			if (result == 0) {
+				if (readPage())
+					streamState.pagein(page);
+				else
+					endOfStream = true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		int channels = info.channels;
+		int frameSize = 2 * channels;
+		while (buffer.remaining() >= frameSize) {
+			int samples = dspState.synthesis_pcmout(pcm, pcmIndex);
+			if (samples <= 0) {
+				if (!nextPacket())
+					break;
+				continue;
+			}
+			int count = Math.min(samples, buffer.remaining() / frameSize);
+			float[][] data = pcm[0];
+			for (int i = 0; i < count; i++) {
+				for (int c = 0; c < channels; c++) {
+					int value = (int) (data[c][pcmIndex[c] + i] * 32767f);
+					if (value > Short.MAX_VALUE)
+						value = Short.MAX_VALUE;
+					else if (value < Short.MIN_VALUE)
+						value = Short.MIN_VALUE;
+					buffer.putShort((short) value);
+				}
+			}
+			dspState.synthesis_read(count);
+		}
+		int written = buffer.position() - start;
+		if (written == 0 && endOfStream)
+			return -1;
+		return written;
+	}
+
+	@Override
+	public void reset() throws IOException {
+		close();
+		open();
+	}
+
+	@Override
+	public int getChannels() {
+		return info.channels;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return info.rate;
+	}
+
+	@Override
+	public void close() throws IOException {
+		block.clear();
+		dspState.clear();
+		streamState.clear();
+		info.clear();
+		syncState.clear();
+		inputStream.close();
+	}
+
+}
@@ -0,0 +1,93 @@
+package de.felk.JOpenAL;
+
+import java.io.IOException;
+
+import org.lwjgl.LWJGLException;
+import org.lwjgl.openal.OpenALException;
+
+/**
+ * Pool of the sounds played by SoundManager.playOneShot(). Playing a one-shot reuses a finished sound instead of creating a new one, so once the pool is large enough nothing gets allocated. Each playback is identified by a handle that combines the slot of the sound in the pool and its generation, so a handle of a playback that already ended can't affect the next one
+ */
+class OneShotPool {
+
+	private OneShotSound[] sounds = new OneShotSound[0];
+	private int[] freeSlots = new int[0];
+	private int freeCount = 0;
+
+	/** plays the given buffer on a pooled sound and returns the handle of the playback, SoundManager.NO_HANDLE if the buffer had been evicted and can't be loaded again */
+	long play(ALBuffer buffer, SoundCategory category, float posX, float posY, float posZ, float gain, float pitch, int priority) {
+		// the buffer must not be evicted while it plays
+		if (!buffer.retain()) {
+			buffer = reload(buffer);
+			if (buffer == null)
+				return SoundManager.NO_HANDLE;
+		}
+		if (freeCount == 0)
+			grow();
+		OneShotSound sound = sounds[freeSlots[--freeCount]];
+		// the handle has to be taken before starting, a sound too quiet to be played finishes right away
+		long handle = getHandle(sound);
+		ALBufferBank.played(buffer);
+		sound.start(buffer, category, posX, posY, posZ, gain, pitch, priority);
+		return handle;
+	}
+
+	/** loads the file of an evicted buffer again and retains it, as the evicted buffer's ID may belong to another buffer by now. Returns null if that fails */
+	private static ALBuffer reload(ALBuffer evicted) {
+		if (evicted.filename == null)
+			return null;
+		try {
+			return ALBufferBank.acquireSound(evicted.filename);
+		} catch (OpenALException | IOException | LWJGLException e) {
+			System.out.println("could not load " + evicted.filename + " again for a one-shot");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/** puts the given sound back on the free list */
+	void free(OneShotSound sound) {
+		freeSlots[freeCount++] = sound.slot;
+	}
+
+	/** returns the sound of the given handle, or null if the handle is stale */
+	OneShotSound get(long handle) {
+		int slot = (int) handle;
+		int generation = (int) (handle >>> 32);
+		if (slot < 0 || slot >= sounds.length || sounds[slot].generation != generation)
+			return null;
+		return sounds[slot];
+	}
+
+	/** returns how many one-shots are playing at the moment */
+	int getActiveCount() {
+		return sounds.length - freeCount;
+	}
+
+	private static long getHandle(OneShotSound sound) {
+		return ((long) sound.generation << 32) | (sound.slot & 0xFFFFFFFFL);
+	}
+
+	/** doubles the number of pooled sounds */
+	private void grow() {
+		int oldSize = sounds.length;
+		int newSize = Math.max(16, oldSize * 2);
+		OneShotSound[] newSounds = new OneShotSound[newSize];
+		System.arraycopy(sounds, 0, newSounds, 0, oldSize);
+		int[] newFreeSlots = new int[newSize];
+		System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeCount);
+		sounds = newSounds;
+		freeSlots = newFreeSlots;
+		for (int i = newSize - 1; i >= oldSize; i--) {
+			sounds[i] = new OneShotSound(this, i);
+			freeSlots[freeCount++] = i;
+		}
+	}
+
+	/** makes sure the pool holds at least the given number of sounds */
+	void reserve(int size) {
+		while (sounds.length < size)
+			grow();
+	}
+
+}
@@ -0,0 +1,59 @@
+package de.felk.JOpenAL;
+
+/** A pooled sound played by SoundManager.playOneShot(). It goes back into its pool as soon as its playback ends */
+class OneShotSound extends Sound {
+
+	private final OneShotPool pool;
+	final int slot;
+	int generation = 0; // increased every time this sound gets reused, so handles of earlier playbacks turn stale
+	private final ALBuffer[] buffer;
+
+	OneShotSound(OneShotPool pool, int slot) {
+		this(pool, slot, new ALBuffer[1]);
+	}
+
+	private OneShotSound(OneShotPool pool, int slot, ALBuffer[] buffer) {
+		super(SoundCategory.EFFECT, buffer);
+		this.pool = pool;
+		this.slot = slot;
+		this.buffer = buffer;
+	}
+
+	/** sets this sound up with the given buffer and properties and starts the playback. The buffer has to be retained already, recycling releases it */
+	void start(ALBuffer buffer, SoundCategory category, float posX, float posY, float posZ, float gain, float pitch, int priority) {
+		this.buffer[0] = buffer;
+		this.priority = priority;
+		setCategory(category);
+		selectBuffer(0);
+		setLooping(false);
+		setPosition(posX, posY, posZ);
+		setVelocity(0, 0, 0);
+		setGain(gain);
+		setPitch(pitch);
+		setOffset(0);
+		play();
+	}
+
+	@Override
+	void finish() {
+		super.finish();
+		recycle();
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		recycle();
+	}
+
+	/** releases the buffer and gives this sound back to the pool. Does nothing if it already is back */
+	private void recycle() {
+		if (buffer[0] == null)
+			return;
+		buffer[0].release();
+		buffer[0] = null;
+		generation++;
+		pool.free(this);
+	}
+
+}
@@ -0,0 +1,196 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.LWJGLException;
+import org.lwjgl.openal.AL;
+import org.lwjgl.openal.ALCdevice;
+import org.lwjgl.openal.EFX10;
+
+import static org.lwjgl.openal.AL10.*;
+import static org.lwjgl.openal.ALC10.*;
+import static org.lwjgl.openal.ALC11.*;
+
+/** The default backend, playing through the sound device with LWJGL's OpenAL binding */
+public class OpenALBackend implements SoundBackend {
+
+	@Override
+	public void create() throws LWJGLException {
+		AL.create(); // quick and easy way to initialize OpenAL with the default audio device
+	}
+
+	@Override
+	public void destroy() {
+		AL.destroy();
+	}
+
+	@Override
+	public void readDeviceAttributes() {
+
+		ALCdevice device = AL.getDevice();
+
+		IntBuffer buffer = BufferUtils.createIntBuffer(1);
+
+		alcGetInteger(device, ALC_ATTRIBUTES_SIZE, buffer);
+		ALHelper.checkALCError();
+
+		int length = buffer.get(0);
+		buffer = BufferUtils.createIntBuffer(length);
+
+		alcGetInteger(device, ALC_ALL_ATTRIBUTES, buffer);
+		ALHelper.checkALCError();
+
+		for (int i = 0; i + 1 < buffer.limit(); i += 2) {
+			if (buffer.get(i) == ALC_MONO_SOURCES) {
+				ALHelper.MONO_SOURCES = buffer.get(i + 1);
+				//System.out.println("ALC_MONO_SOURCES: " + buffer.get(i + 1));
+			} else if (buffer.get(i) == ALC_STEREO_SOURCES) {
+				ALHelper.STEREO_SOURCES = buffer.get(i + 1);
+				//System.out.println("ALC_STEREO_SOURCES: " + buffer.get(i + 1));
+			} else if (buffer.get(i) == ALC_FREQUENCY) {
+				ALHelper.FREQUENCY = buffer.get(i + 1);
+				//System.out.println("ALC_FREQUENCY: " + buffer.get(i + 1));
+			} else if (buffer.get(i) == AL_BUFFER) {
+				//System.out.println("AL_BUFFER: " + buffer.get(i + 1));
+			} else if (buffer.get(i) == ALC_REFRESH) {
+				//System.out.println("ALC_REFRESH: " + buffer.get(i + 1));
+			} else if (buffer.get(i) == EFX10.ALC_MAX_AUXILIARY_SENDS) {
+				//System.out.println("ALC_MAX_AUXILIARY_SENDS: " + buffer.get(i + 1));
+			} else {
+				//System.out.println("unspecified: " + buffer.get(i) + " > " + buffer.get(i + 1));
+			}
+
+		}
+		//System.out.println("Buffer content: "+buffer.get(0));
+
+	}
+
+	@Override
+	public int getError() {
+		return alGetError();
+	}
+
+	@Override
+	public int getDeviceError() {
+		return alcGetError(AL.getDevice());
+	}
+
+	@Override
+	public boolean isExtensionPresent(String name) {
+		return alIsExtensionPresent(name);
+	}
+
+	@Override
+	public int genSource() {
+		return alGenSources();
+	}
+
+	@Override
+	public void genSources(IntBuffer ids) {
+		alGenSources(ids);
+	}
+
+	@Override
+	public int genBuffer() {
+		return alGenBuffers();
+	}
+
+	@Override
+	public void genBuffers(IntBuffer ids) {
+		alGenBuffers(ids);
+	}
+
+	@Override
+	public void deleteSource(int source) {
+		alDeleteSources(source);
+	}
+
+	@Override
+	public void deleteSources(IntBuffer ids) {
+		alDeleteSources(ids);
+	}
+
+	@Override
+	public void deleteBuffer(int buffer) {
+		alDeleteBuffers(buffer);
+	}
+
+	@Override
+	public void deleteBuffers(IntBuffer ids) {
+		alDeleteBuffers(ids);
+	}
+
+	@Override
+	public void bufferData(int buffer, int format, ByteBuffer data, int frequency) {
+		alBufferData(buffer, format, data, frequency);
+	}
+
+	@Override
+	public int getBufferi(int buffer, int param) {
+		return alGetBufferi(buffer, param);
+	}
+
+	@Override
+	public void play(int source) {
+		alSourcePlay(source);
+	}
+
+	@Override
+	public void stop(int source) {
+		alSourceStop(source);
+	}
+
+	@Override
+	public void rewind(int source) {
+		alSourceRewind(source);
+	}
+
+	@Override
+	public void pause(int source) {
+		alSourcePause(source);
+	}
+
+	@Override
+	public void sourcei(int source, int param, int value) {
+		alSourcei(source, param, value);
+	}
+
+	@Override
+	public void sourcef(int source, int param, float value) {
+		alSourcef(source, param, value);
+	}
+
+	@Override
+	public void source3f(int source, int param, float x, float y, float z) {
+		alSource3f(source, param, x, y, z);
+	}
+
+	@Override
+	public int getSourcei(int source, int param) {
+		return alGetSourcei(source, param);
+	}
+
+	@Override
+	public void queueBuffer(int source, int buffer) {
+		alSourceQueueBuffers(source, buffer);
+	}
+
+	@Override
+	public int unqueueBuffer(int source) {
+		return alSourceUnqueueBuffers(source);
+	}
+
+	@Override
+	public void listener3f(int param, float x, float y, float z) {
+		alListener3f(param, x, y, z);
+	}
+
+	@Override
+	public void listenerOrientation(FloatBuffer orientation) {
+		alListener(AL_ORIENTATION, orientation);
+	}
+
+}
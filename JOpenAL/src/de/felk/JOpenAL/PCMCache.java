@@ -0,0 +1,157 @@
+package de.felk.JOpenAL;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Optional on-disk cache of decoded PCM data, so sound files only have to be decoded once instead of every launch. Each entry stores a hash of the source file's content, of the decoder settings and of the PCMConverter settings it was converted with; if any of them changed the entry is considered stale and gets rebuilt. Cached data is memory mapped and passed to the sound device without copying
+ */
+public class PCMCache {
+
+	// bump this whenever the decoders produce different output for the same file, invalidating all entries
+	public static final int DECODER_VERSION = 1;
+
+	private static final int MAGIC = 0x4A50434D; // "JPCM"
+	private static final int HASH_LENGTH = 20; // SHA-1
+	private static final int HEADER_SIZE = 4 + 4 + 1 + HASH_LENGTH + 4 + 4 + 4 + 4;
+	private static final int READ_SIZE = 65536;
+
+	private static volatile File directory = null;
+
+	/** Enables the cache, storing its entries in the given directory. null disables the cache */
+	public static void setDirectory(File directory) {
+		if (directory != null)
+			directory.mkdirs();
+		PCMCache.directory = directory;
+	}
+
+	public static File getDirectory() {
+		return directory;
+	}
+
+	public static boolean isEnabled() {
+		return directory != null;
+	}
+
+	/**
+	 * Returns the cached PCM data for the given sound file, or null if there is no up to date entry
+	 *
+	 * @param filename
+	 *            name the sound is requested by, determines the entry
+	 * @param file
+	 *            the sound file itself, to check the entry against
+	 * @param variant
+	 *            conversion the data has to have gone through, see PCMConverter.getVariant()
+	 */
+	static PCMData load(String filename, File file, String variant) throws IOException {
+		File entry = getEntry(filename);
+		if (entry == null || !entry.isFile())
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(entry, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE)
+				return null;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != DECODER_VERSION)
+				return null;
+			// PCM samples are stored in the byte order of the machine that wrote them
+			boolean bigEndian = header.get() != 0;
+			if (bigEndian != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN))
+				return null;
+			byte[] hash = new byte[HASH_LENGTH];
+			header.get(hash);
+			if (!Arrays.equals(hash, hash(file, variant)))
+				return null;
+			int format = header.getInt();
+			int sampleRate = header.getInt();
+			header.getInt(); // channels, only stored for inspection
+			int length = header.getInt();
+			if (channel.size() != HEADER_SIZE + (long) length)
+				return null;
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length);
+			data.order(ByteOrder.nativeOrder());
+			return new PCMData(data, format, sampleRate);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Writes the given decoded and converted PCM data into the cache, replacing any existing entry for the file */
+	static void store(String filename, File file, String variant, PCMData pcm) throws IOException {
+		File entry = getEntry(filename);
+		if (entry == null)
+			return;
+		ByteBuffer data = pcm.getData().duplicate();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(DECODER_VERSION);
+		header.put((byte) (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0));
+		header.put(hash(file, variant));
+		header.putInt(pcm.getFormat());
+		header.putInt(pcm.getSampleRate());
+		header.putInt(ALHelper.getChannels(pcm.getFormat()));
+		header.putInt(data.remaining());
+		header.flip();
+
+		// write to a temporary file first, so no half written entry can be read by another thread or a crashed run
+		File temp = File.createTempFile(entry.getName(), ".tmp", entry.getParentFile());
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			while (header.hasRemaining())
+				channel.write(header);
+			while (data.hasRemaining())
+				channel.write(data);
+		} finally {
+			raf.close();
+		}
+		Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** returns the cache entry for the given sound, or null if the cache is disabled */
+	private static File getEntry(String filename) {
+		File dir = directory;
+		if (dir == null)
+			return null;
+		// the requested name can contain directories, so it gets flattened
+		return new File(dir, filename.replaceAll("[^A-Za-z0-9._-]", "_") + ".pcm");
+	}
+
+	/** returns the SHA-1 hash of the given file's content followed by the conversion variant. No conversion hashes just the content */
+	private static byte[] hash(File file, String variant) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[READ_SIZE];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		digest.update(variant.getBytes(StandardCharsets.UTF_8));
+		return digest.digest();
+	}
+
+}
@@ -0,0 +1,255 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.lwjgl.openal.AL10.*;
+
+/**
+ * Optional conversion of decoded sounds before they get uploaded: positional sounds get downmixed to mono, as OpenAL only spatializes mono buffers, and everything can be resampled to the device's rate, so the sound device doesn't have to resample while playing. Sounds marked as compact get stored in a smaller format: IMA4 ADPCM if the device supports it, 8 bit PCM otherwise. Runs on the thread that decodes, so files loaded in the background get converted in parallel. Settings only affect sounds loaded afterwards
+ */
+public class PCMConverter {
+
+	public static final int RATE_KEEP = 0; // no resampling
+	public static final int RATE_DEVICE = -1; // resample to ALHelper.FREQUENCY, once the sound device is set up
+
+	public static final int QUALITY_LINEAR = 0; // linear interpolation, fastest
+	public static final int QUALITY_CUBIC = 1; // 4 point cubic interpolation
+	public static final int QUALITY_SINC = 2; // windowed sinc, which also filters what the new rate can't hold. Slowest
+
+	private static final int SINC_TAPS = 8; // taps on each side of the windowed sinc
+	private static final int SINC_PHASES = 256; // fractional positions the sinc kernel gets precomputed for
+
+	private static volatile int targetRate = RATE_KEEP;
+	private static volatile int quality = QUALITY_CUBIC;
+	private static final Set<String> positional = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private static final Set<String> compact = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** Sets the rate all sounds get resampled to when loaded: a rate in Hz, RATE_DEVICE or RATE_KEEP */
+	public static void setTargetRate(int rate) {
+		targetRate = rate;
+	}
+
+	public static int getTargetRate() {
+		return targetRate;
+	}
+
+	/** Sets how sounds get resampled, one of QUALITY_LINEAR, QUALITY_CUBIC and QUALITY_SINC */
+	public static void setQuality(int quality) {
+		PCMConverter.quality = quality;
+	}
+
+	public static int getQuality() {
+		return quality;
+	}
+
+	/** Marks the given files as played at a position, so they get downmixed to mono when loaded */
+	public static void markPositional(String... filenames) {
+		Collections.addAll(positional, filenames);
+	}
+
+	public static void unmarkPositional(String... filenames) {
+		for (String filename : filenames) {
+			positional.remove(filename);
+		}
+	}
+
+	public static boolean isPositional(String filename) {
+		return positional.contains(filename);
+	}
+
+	/** Marks the given files to be stored in a compact format when loaded, a quarter (IMA4) or half (8 bit) of the memory at lower quality. Meant for large ambient and voice files */
+	public static void markCompact(String... filenames) {
+		Collections.addAll(compact, filenames);
+	}
+
+	public static void unmarkCompact(String... filenames) {
+		for (String filename : filenames) {
+			compact.remove(filename);
+		}
+	}
+
+	public static boolean isCompact(String filename) {
+		return compact.contains(filename);
+	}
+
+	/** returns the rate a sound with the given rate gets resampled to */
+	private static int getOutputRate(int rate) {
+		int target = targetRate;
+		if (target == RATE_DEVICE)
+			target = ALHelper.FREQUENCY;
+		return target > 0 ? target : rate;
+	}
+
+	/** describes the conversion the given file gets with the current settings, empty if none. Part of the PCMCache key, so changing settings rebuilds the entries */
+	static String getVariant(String filename) {
+		StringBuilder variant = new StringBuilder();
+		if (isPositional(filename))
+			variant.append("mono");
+		int target = targetRate;
+		if (target == RATE_DEVICE)
+			target = ALHelper.FREQUENCY;
+		if (target > 0)
+			variant.append('@').append(target).append('q').append(quality);
+		// the format depends on the device, so the cache has to tell them apart
+		if (isCompact(filename))
+			variant.append(ALHelper.IMA4 ? "ima4" : "pcm8");
+		return variant.toString();
+	}
+
+	/**
+	 * Converts the given decoded sound according to the settings. Only 16 bit data gets converted
+	 *
+	 * @return the converted data, or the given data if nothing had to be done. The given data gets disposed if converted
+	 */
+	static PCMData convert(String filename, PCMData data) {
+		data = normalize(filename, data);
+		if (!isCompact(filename) || (data.getFormat() != AL_FORMAT_MONO16 && data.getFormat() != AL_FORMAT_STEREO16))
+			return data;
+		PCMData encoded = ALHelper.IMA4 ? IMA4Encoder.encode(data) : encodePCM8(data);
+		data.dispose();
+		return encoded;
+	}
+
+	/**
+	 * Converts 16 bit PCM data to 8 bit, the fallback for compact sounds on devices without IMA4 support
+	 *
+	 * @param pcm
+	 *            mono or stereo 16 bit data in native byte order. Stays untouched
+	 * @return the 8 bit data in a pooled buffer
+	 */
+	public static PCMData encodePCM8(PCMData pcm) {
+		int format = pcm.getFormat();
+		if (format != AL_FORMAT_MONO16 && format != AL_FORMAT_STEREO16)
+			throw new IllegalArgumentException("only 16 bit PCM can be encoded, not format " + format);
+		ShortBuffer in = pcm.getData().slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+		int samples = in.remaining();
+		ByteBuffer out = BufferPool.acquire(samples);
+		for (int i = 0; i < samples; i++) {
+			// 8 bit samples are unsigned, centered at 128
+			out.put(i, (byte) (Math.min(127, (in.get(i) + 128) >> 8) + 128));
+		}
+		return new PCMData(out, format == AL_FORMAT_STEREO16 ? AL_FORMAT_STEREO8 : AL_FORMAT_MONO8, pcm.getSampleRate(), true);
+	}
+
+	/** downmixes and resamples the given data according to the settings, disposing it if anything was done */
+	private static PCMData normalize(String filename, PCMData data) {
+		int format = data.getFormat();
+		if (format != AL_FORMAT_MONO16 && format != AL_FORMAT_STEREO16)
+			return data;
+		int channels = ALHelper.getChannels(format);
+		boolean downmix = channels == 2 && isPositional(filename);
+		int outChannels = downmix ? 1 : channels;
+		int rate = data.getSampleRate();
+		int outRate = getOutputRate(rate);
+		if (!downmix && outRate == rate)
+			return data;
+
+		ShortBuffer in = data.getData().slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+		int frames = in.remaining() / channels;
+		long outFrames = outRate == rate ? frames : (long) frames * outRate / rate;
+		if (outFrames * outChannels * 2 > Integer.MAX_VALUE)
+			return data;
+		ByteBuffer outBytes = BufferPool.acquire((int) outFrames * outChannels * 2);
+		ShortBuffer out = outBytes.order(ByteOrder.nativeOrder()).asShortBuffer();
+
+		// the input gets read through downmix(), so the resampler never sees more channels than it writes
+		if (outRate == rate) {
+			for (int i = 0; i < frames; i++) {
+				out.put(i, toShort(downmix(in, i)));
+			}
+		} else {
+			for (int channel = 0; channel < outChannels; channel++) {
+				resample(in, frames, channels, downmix, channel, out, (int) outFrames, outChannels, (double) rate / outRate);
+			}
+		}
+		data.dispose();
+		return new PCMData(outBytes, ALHelper.getFormat(outChannels), outRate, true);
+	}
+
+	/** returns the average of both channels of the given stereo frame */
+	private static float downmix(ShortBuffer in, int frame) {
+		return (in.get(frame * 2) + in.get(frame * 2 + 1)) * 0.5f;
+	}
+
+	/** returns a sample of the input, repeating the first and last frame beyond its ends */
+	private static float sample(ShortBuffer in, int frames, int channels, boolean downmix, int channel, int frame) {
+		if (frame < 0)
+			frame = 0;
+		else if (frame >= frames)
+			frame = frames - 1;
+		return downmix ? downmix(in, frame) : in.get(frame * channels + channel);
+	}
+
+	/** resamples one channel of the input into the output, step being how many input frames one output frame advances */
+	private static void resample(ShortBuffer in, int frames, int channels, boolean downmix, int channel, ShortBuffer out, int outFrames, int outChannels, double step) {
+		int mode = quality;
+		float[] kernel = mode == QUALITY_SINC ? createSincKernel(step) : null;
+		for (int i = 0; i < outFrames; i++) {
+			double position = i * step;
+			int index = (int) position;
+			float fraction = (float) (position - index);
+			float value;
+			switch (mode) {
+			case QUALITY_LINEAR: {
+				float a = sample(in, frames, channels, downmix, channel, index);
+				float b = sample(in, frames, channels, downmix, channel, index + 1);
+				value = a + (b - a) * fraction;
+				break;
+			}
+			case QUALITY_SINC: {
+				int phase = (int) (fraction * SINC_PHASES) * SINC_TAPS * 2;
+				value = 0;
+				for (int k = 0; k < SINC_TAPS * 2; k++) {
+					value += kernel[phase + k] * sample(in, frames, channels, downmix, channel, index - SINC_TAPS + 1 + k);
+				}
+				break;
+			}
+			default: {
+				// Catmull-Rom spline through the two frames around the position and their neighbours
+				float p0 = sample(in, frames, channels, downmix, channel, index - 1);
+				float p1 = sample(in, frames, channels, downmix, channel, index);
+				float p2 = sample(in, frames, channels, downmix, channel, index + 1);
+				float p3 = sample(in, frames, channels, downmix, channel, index + 2);
+				value = p1 + 0.5f * fraction * (p2 - p0 + fraction * (2 * p0 - 5 * p1 + 4 * p2 - p3 + fraction * (3 * (p1 - p2) + p3 - p0)));
+			}
+			}
+			out.put(i * outChannels + channel, toShort(value));
+		}
+	}
+
+	/**
+	 * precomputes the Blackman windowed sinc for every phase: SINC_TAPS * 2 weights per phase, for the input frames from index - SINC_TAPS + 1 to index + SINC_TAPS. When downsampling, the cutoff moves down with the rate, so nothing above the new Nyquist frequency folds back
+	 */
+	private static float[] createSincKernel(double step) {
+		double cutoff = Math.min(1, 1 / step);
+		float[] kernel = new float[SINC_PHASES * SINC_TAPS * 2];
+		for (int phase = 0; phase < SINC_PHASES; phase++) {
+			double fraction = (double) phase / SINC_PHASES;
+			double sum = 0;
+			for (int k = 0; k < SINC_TAPS * 2; k++) {
+				double x = k - SINC_TAPS + 1 - fraction; // distance of the tap from the position
+				double sinc = x == 0 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+				double t = (x + SINC_TAPS) / (2 * SINC_TAPS); // 0 to 1 across the window
+				double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * t) + 0.08 * Math.cos(4 * Math.PI * t);
+				double weight = cutoff * sinc * window;
+				kernel[phase * SINC_TAPS * 2 + k] = (float) weight;
+				sum += weight;
+			}
+			// normalize, so a constant signal keeps its level
+			for (int k = 0; k < SINC_TAPS * 2; k++) {
+				kernel[phase * SINC_TAPS * 2 + k] /= sum;
+			}
+		}
+		return kernel;
+	}
+
+	private static short toShort(float value) {
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+	}
+
+}
@@ -0,0 +1,48 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+
+/** Decoded PCM audio data, ready to be uploaded into a buffer on the sound device */
+public class PCMData {
+
+	private final ByteBuffer data;
+	private final int format;
+	private final int sampleRate;
+	private final boolean pooled; // whether data came from the BufferPool and has to go back there
+
+	public PCMData(ByteBuffer data, int format, int sampleRate) {
+		this(data, format, sampleRate, false);
+	}
+
+	public PCMData(ByteBuffer data, int format, int sampleRate, boolean pooled) {
+		this.data = data;
+		this.format = format;
+		this.sampleRate = sampleRate;
+		this.pooled = pooled;
+	}
+
+	/** Gives the data back to the BufferPool, if it came from there. The data must not be used afterwards */
+	public void dispose() {
+		if (pooled)
+			BufferPool.release(data);
+	}
+
+	/** Returns the raw PCM data */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	/** Returns the AL format of the data, for example AL_FORMAT_STEREO16 */
+	public int getFormat() {
+		return format;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public String toString() {
+		return "PCMData(size: " + data.remaining() + ", format: " + format + ", sampleRate: " + sampleRate + ")";
+	}
+}
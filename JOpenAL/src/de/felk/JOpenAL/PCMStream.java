@@ -0,0 +1,29 @@
+package de.felk.JOpenAL;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** A source of 16 bit PCM audio data that gets decoded chunk by chunk instead of all at once */
+public interface PCMStream {
+
+	/**
+	 * Decodes as many whole sample frames as fit into the remaining space of the given buffer
+	 *
+	 * @param buffer
+	 *            buffer to write the PCM data into, starting at its current position
+	 * @return the number of bytes written, or -1 if the end of the stream has been reached
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer buffer) throws IOException;
+
+	/** Rewinds the stream to its beginning */
+	public void reset() throws IOException;
+
+	public int getChannels();
+
+	public int getSampleRate();
+
+	/** Frees all resources held by this stream */
+	public void close() throws IOException;
+
+}
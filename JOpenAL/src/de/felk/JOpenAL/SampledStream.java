@@ -0,0 +1,100 @@
+package de.felk.JOpenAL;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/** Decodes any file javax.sound.sampled can read (for example .wav) into 16 bit PCM, one block at a time */
+public class SampledStream implements PCMStream {
+
+	private static final int READ_SIZE = 65536;
+
+	private final File file;
+	private final byte[] content; // the file's content if held in memory, null to read the file
+	private AudioInputStream inputStream;
+	private AudioFormat format;
+	private byte[] readBuffer = new byte[READ_SIZE];
+
+	public SampledStream(File file) throws IOException {
+		this(file, null);
+	}
+
+	/** Decodes the given content of the given file, which then only names the stream */
+	public SampledStream(File file, byte[] content) throws IOException {
+		this.file = file;
+		this.content = content;
+		open();
+	}
+
+	private void open() throws IOException {
+		AudioInputStream in;
+		try {
+			in = content != null ? AudioSystem.getAudioInputStream(new ByteArrayInputStream(content)) : AudioSystem.getAudioInputStream(file);
+		} catch (UnsupportedAudioFileException e) {
+			throw new IOException("unsupported audio file: " + file.getName(), e);
+		}
+		AudioFormat baseFormat = in.getFormat();
+		// OpenAL expects signed 16 bit samples in the platform's byte order
+		format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+		                         baseFormat.getSampleRate(),
+		                         16,
+		                         baseFormat.getChannels(),
+		                         baseFormat.getChannels() * 2,
+		                         baseFormat.getSampleRate(),
+		                         ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+		inputStream = AudioSystem.getAudioInputStream(format, in);
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		int frameSize = format.getFrameSize();
+		int written = 0;
+		while (buffer.remaining() >= frameSize) {
+			int length = Math.min(readBuffer.length, buffer.remaining());
+			length -= length % frameSize;
+			int bytes = inputStream.read(readBuffer, 0, length);
+			if (bytes <= 0)
+				return written == 0 ? -1 : written;
+			buffer.put(readBuffer, 0, bytes);
+			written += bytes;
+		}
+		return written;
+	}
+
+	/** Returns the length of the decoded data in bytes, or -1 if the length is not known up front (as with most compressed formats) */
+	public long getLength() {
+		long frames = inputStream.getFrameLength();
+		if (frames == AudioSystem.NOT_SPECIFIED)
+			return -1;
+		return frames * format.getFrameSize();
+	}
+
+	@Override
+	public void reset() throws IOException {
+		close();
+		open();
+	}
+
+	@Override
+	public int getChannels() {
+		return format.getChannels();
+	}
+
+	@Override
+	public int getSampleRate() {
+		return (int) format.getSampleRate();
+	}
+
+	@Override
+	public void close() throws IOException {
+		inputStream.close();
+	}
+
+}
@@ -0,0 +1,733 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.lwjgl.openal.AL10.*;
+import static org.lwjgl.openal.AL11.*;
+import static org.lwjgl.openal.ALC10.ALC_NO_ERROR;
+
+/**
+ * A backend that mixes all sources in Java instead of on a sound device, so the library runs without audio hardware and without a limit on voices set by a driver. Sources get resampled with linear interpolation, attenuated with OpenAL's inverse distance clamped model and panned by their direction from the listener. Whoever owns the mixer pulls the result with mix() block by block, playback only advances that way. Use it with ALHelper.setBackend() before the SoundManager is used
+ */
+public class SoftwareMixer implements SoundBackend {
+
+	public static final int DEFAULT_SAMPLE_RATE = 44100;
+	public static final int DEFAULT_MAX_SOURCES = 4096;
+	private static final int BLOCK_FRAMES = 1024; // longer mix() requests are split into blocks of this many frames
+	private static final float REFERENCE_DISTANCE = 1f;
+	private static final float MAX_GAIN = 1f;
+
+	private final int sampleRate;
+	private final int maxSources;
+	// sources and buffers by id - 1, null for deleted ones
+	private final ArrayList<Voice> voices = new ArrayList<Voice>();
+	private final ArrayList<Clip> clips = new ArrayList<Clip>();
+	private final ArrayDeque<Integer> freeVoiceIDs = new ArrayDeque<Integer>();
+	private final ArrayDeque<Integer> freeClipIDs = new ArrayDeque<Integer>();
+	private int sourceCount = 0;
+	private int error = AL_NO_ERROR;
+
+	private float listenerX, listenerY, listenerZ;
+	// the listener's right direction, derived from its orientation. Sources on that side play on the right channel
+	private float rightX = 1, rightY = 0, rightZ = 0;
+
+	// one block of a single voice and the sum of all voices, per output channel
+	private final float[] voiceLeft = new float[BLOCK_FRAMES];
+	private final float[] voiceRight = new float[BLOCK_FRAMES];
+	private final float[] mixLeft = new float[BLOCK_FRAMES];
+	private final float[] mixRight = new float[BLOCK_FRAMES];
+
+	public SoftwareMixer() {
+		this(DEFAULT_SAMPLE_RATE, DEFAULT_MAX_SOURCES);
+	}
+
+	/**
+	 * @param sampleRate
+	 *            sample rate of the mixed output in Hz
+	 * @param maxSources
+	 *            how many sources can exist at once
+	 */
+	public SoftwareMixer(int sampleRate, int maxSources) {
+		this.sampleRate = sampleRate;
+		this.maxSources = maxSources;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/** Mixes the next frames of all playing sources into the given array as interleaved stereo floats between -1 and 1, advancing their playback */
+	public synchronized void mix(float[] out, int frames) {
+		for (int done = 0; done < frames; done += BLOCK_FRAMES) {
+			int block = Math.min(BLOCK_FRAMES, frames - done);
+			mixBlock(block);
+			for (int i = 0, o = done * 2; i < block; i++, o += 2) {
+				out[o] = mixLeft[i];
+				out[o + 1] = mixRight[i];
+			}
+		}
+	}
+
+	/** Like mix(float[], int), with interleaved stereo 16 bit samples. Louder parts get clipped */
+	public synchronized void mix(short[] out, int frames) {
+		for (int done = 0; done < frames; done += BLOCK_FRAMES) {
+			int block = Math.min(BLOCK_FRAMES, frames - done);
+			mixBlock(block);
+			for (int i = 0, o = done * 2; i < block; i++, o += 2) {
+				out[o] = toShort(mixLeft[i]);
+				out[o + 1] = toShort(mixRight[i]);
+			}
+		}
+	}
+
+	/** Advances the playback of all sources by the given number of frames without producing any output */
+	public synchronized void skip(int frames) {
+		for (int done = 0; done < frames; done += BLOCK_FRAMES) {
+			mixBlock(Math.min(BLOCK_FRAMES, frames - done));
+		}
+	}
+
+	private static short toShort(float sample) {
+		return (short) (Math.max(-1f, Math.min(1f, sample)) * Short.MAX_VALUE);
+	}
+
+	/** mixes the next frames of all playing voices into mixLeft and mixRight */
+	private void mixBlock(int frames) {
+		Arrays.fill(mixLeft, 0, frames, 0);
+		Arrays.fill(mixRight, 0, frames, 0);
+		for (int i = 0; i < voices.size(); i++) {
+			Voice voice = voices.get(i);
+			if (voice != null && voice.state == AL_PLAYING)
+				mixVoice(voice, frames);
+		}
+	}
+
+	/** resamples the voice's queue into voiceLeft/voiceRight and adds that to the mix, moving on through the queue as buffers end */
+	private void mixVoice(Voice voice, int frames) {
+		float gain = getAttenuatedGain(voice);
+		// equal power panning by how far the source is to the listener's right
+		float angle = (getPan(voice) + 1) * (float) Math.PI / 4;
+		float gainLeft = gain * (float) Math.cos(angle);
+		float gainRight = gain * (float) Math.sin(angle);
+		float stereoGain = Math.min(voice.gain, MAX_GAIN);
+
+		int done = 0;
+		int emptyClips = 0;
+		while (done < frames && voice.state == AL_PLAYING) {
+			if (voice.current >= voice.queueLength) {
+				// all buffers got detached while playing
+				voice.state = AL_STOPPED;
+				break;
+			}
+			Clip clip = voice.queue[voice.current];
+			int produced = resample(voice, clip, done, frames - done);
+			if (clip.channels == 1) {
+				accumulate(voiceLeft, mixLeft, gainLeft, done, produced);
+				accumulate(voiceLeft, mixRight, gainRight, done, produced);
+			} else {
+				// stereo buffers aren't spatialized, like on OpenAL
+				accumulate(voiceLeft, mixLeft, stereoGain, done, produced);
+				accumulate(voiceRight, mixRight, stereoGain, done, produced);
+			}
+			done += produced;
+			if (done == frames)
+				break;
+			// the buffer ended within this block
+			emptyClips = produced == 0 ? emptyClips + 1 : 0;
+			voice.cursor -= clip.frames;
+			voice.current++;
+			if (voice.current == voice.queueLength) {
+				if (voice.looping && emptyClips <= voice.queueLength) {
+					voice.current = 0;
+				} else {
+					voice.state = AL_STOPPED;
+					voice.cursor = 0;
+				}
+			}
+		}
+	}
+
+	/** adds source * gain to target. A plain loop over arrays, which the JIT can vectorize */
+	private static void accumulate(float[] source, float[] target, float gain, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			target[i] += source[i] * gain;
+		}
+	}
+
+	/**
+	 * resamples the voice's current buffer from its cursor on into voiceLeft (and voiceRight for stereo) with linear interpolation
+	 *
+	 * @return how many frames were produced, less than requested if the buffer ended
+	 */
+	private int resample(Voice voice, Clip clip, int offset, int count) {
+		double step = voice.pitch * clip.frequency / sampleRate;
+		double position = voice.cursor;
+		float[] samples = clip.samples;
+		int last = clip.frames - 1;
+		int i = 0;
+		if (step == 1 && position == (int) position) {
+			// same rate and no pitch: nothing to interpolate, the samples just get copied
+			int start = (int) position;
+			int n = Math.max(0, Math.min(count, clip.frames - start));
+			if (clip.channels == 1) {
+				System.arraycopy(samples, start, voiceLeft, offset, n);
+			} else {
+				for (int s = start * 2, o = offset; o < offset + n; s += 2, o++) {
+					voiceLeft[o] = samples[s];
+					voiceRight[o] = samples[s + 1];
+				}
+			}
+			voice.cursor = position + n;
+			return n;
+		}
+		if (clip.channels == 1) {
+			for (; i < count; i++) {
+				int index = (int) position;
+				if (index > last)
+					break;
+				float fraction = (float) (position - index);
+				float a = samples[index];
+				float b = samples[index < last ? index + 1 : index];
+				voiceLeft[offset + i] = a + (b - a) * fraction;
+				position += step;
+			}
+		} else {
+			for (; i < count; i++) {
+				int index = (int) position;
+				if (index > last)
+					break;
+				float fraction = (float) (position - index);
+				int a = index * 2;
+				int b = index < last ? a + 2 : a;
+				voiceLeft[offset + i] = samples[a] + (samples[b] - samples[a]) * fraction;
+				voiceRight[offset + i] = samples[a + 1] + (samples[b + 1] - samples[a + 1]) * fraction;
+				position += step;
+			}
+		}
+		voice.cursor = position;
+		return i;
+	}
+
+	/** returns the voice's gain after OpenAL's inverse distance clamped attenuation */
+	private float getAttenuatedGain(Voice voice) {
+		float distance = Math.max(getDistance(voice), REFERENCE_DISTANCE);
+		float attenuation = REFERENCE_DISTANCE / (REFERENCE_DISTANCE + voice.rolloff * (distance - REFERENCE_DISTANCE));
+		return Math.min(voice.gain * attenuation, MAX_GAIN);
+	}
+
+	private float getDistance(Voice voice) {
+		float dx = voice.posX - listenerX;
+		float dy = voice.posY - listenerY;
+		float dz = voice.posZ - listenerZ;
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/** returns how far to the right of the listener the voice is, from -1 (left) over 0 (ahead, behind or right at the listener) to 1 (right) */
+	private float getPan(Voice voice) {
+		float distance = getDistance(voice);
+		if (distance == 0)
+			return 0;
+		float right = (voice.posX - listenerX) * rightX + (voice.posY - listenerY) * rightY + (voice.posZ - listenerZ) * rightZ;
+		return Math.max(-1f, Math.min(1f, right / distance));
+	}
+
+	@Override
+	public synchronized void create() {
+	}
+
+	@Override
+	public synchronized void destroy() {
+		voices.clear();
+		clips.clear();
+		freeVoiceIDs.clear();
+		freeClipIDs.clear();
+		sourceCount = 0;
+	}
+
+	@Override
+	public void readDeviceAttributes() {
+		ALHelper.MONO_SOURCES = maxSources;
+		ALHelper.STEREO_SOURCES = maxSources;
+		ALHelper.FREQUENCY = sampleRate;
+	}
+
+	@Override
+	public synchronized int getError() {
+		int result = error;
+		error = AL_NO_ERROR;
+		return result;
+	}
+
+	@Override
+	public int getDeviceError() {
+		// there is no device that could fail
+		return ALC_NO_ERROR;
+	}
+
+	/** remembers the given error, unless an earlier one hasn't been fetched yet */
+	private void setError(int error) {
+		if (this.error == AL_NO_ERROR)
+			this.error = error;
+	}
+
+	@Override
+	public boolean isExtensionPresent(String name) {
+		return false;
+	}
+
+	@Override
+	public synchronized int genSource() {
+		if (sourceCount == maxSources) {
+			setError(AL_OUT_OF_MEMORY);
+			return 0;
+		}
+		sourceCount++;
+		Voice voice = new Voice();
+		Integer id = freeVoiceIDs.poll();
+		if (id == null) {
+			voices.add(voice);
+			return voices.size();
+		}
+		voices.set(id - 1, voice);
+		return id;
+	}
+
+	@Override
+	public synchronized void genSources(IntBuffer ids) {
+		for (int i = ids.position(); i < ids.limit(); i++) {
+			ids.put(i, genSource());
+		}
+	}
+
+	@Override
+	public synchronized int genBuffer() {
+		Integer id = freeClipIDs.poll();
+		if (id == null) {
+			clips.add(new Clip(clips.size() + 1));
+			return clips.size();
+		}
+		clips.set(id - 1, new Clip(id));
+		return id;
+	}
+
+	@Override
+	public synchronized void genBuffers(IntBuffer ids) {
+		for (int i = ids.position(); i < ids.limit(); i++) {
+			ids.put(i, genBuffer());
+		}
+	}
+
+	@Override
+	public synchronized void deleteSource(int source) {
+		if (getVoice(source) == null)
+			return;
+		voices.set(source - 1, null);
+		freeVoiceIDs.push(source);
+		sourceCount--;
+	}
+
+	@Override
+	public synchronized void deleteSources(IntBuffer ids) {
+		for (int i = ids.position(); i < ids.limit(); i++) {
+			deleteSource(ids.get(i));
+		}
+	}
+
+	@Override
+	public synchronized void deleteBuffer(int buffer) {
+		Clip clip = getClip(buffer);
+		if (clip == null)
+			return;
+		// like OpenAL, a buffer attached to or queued on a source stays
+		if (isInUse(clip)) {
+			setError(AL_INVALID_OPERATION);
+			return;
+		}
+		clips.set(buffer - 1, null);
+		freeClipIDs.push(buffer);
+	}
+
+	@Override
+	public synchronized void deleteBuffers(IntBuffer ids) {
+		// like OpenAL, either all of them get deleted or none
+		for (int i = ids.position(); i < ids.limit(); i++) {
+			Clip clip = getClip(ids.get(i));
+			if (clip == null)
+				return;
+			if (isInUse(clip)) {
+				setError(AL_INVALID_OPERATION);
+				return;
+			}
+		}
+		for (int i = ids.position(); i < ids.limit(); i++) {
+			deleteBuffer(ids.get(i));
+		}
+	}
+
+	/** returns whether any voice has the given clip attached or queued */
+	private boolean isInUse(Clip clip) {
+		for (int i = 0; i < voices.size(); i++) {
+			Voice voice = voices.get(i);
+			if (voice == null)
+				continue;
+			for (int j = 0; j < voice.queueLength; j++) {
+				if (voice.queue[j] == clip)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized void bufferData(int buffer, int format, ByteBuffer data, int frequency) {
+		Clip clip = getClip(buffer);
+		if (clip == null)
+			return;
+		int channels, bits;
+		switch (format) {
+		case AL_FORMAT_MONO8:
+			channels = 1;
+			bits = 8;
+			break;
+		case AL_FORMAT_MONO16:
+			channels = 1;
+			bits = 16;
+			break;
+		case AL_FORMAT_STEREO8:
+			channels = 2;
+			bits = 8;
+			break;
+		case AL_FORMAT_STEREO16:
+			channels = 2;
+			bits = 16;
+			break;
+		default:
+			setError(AL_INVALID_ENUM);
+			return;
+		}
+		// 16 bit samples come in native byte order, 8 bit ones unsigned
+		ByteBuffer source = data.duplicate().order(ByteOrder.nativeOrder());
+		int frames = source.remaining() / (channels * bits / 8);
+		float[] samples = new float[frames * channels];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = bits == 16 ? source.getShort() / 32768f : ((source.get() & 0xFF) - 128) / 128f;
+		}
+		clip.samples = samples;
+		clip.frames = frames;
+		clip.channels = channels;
+		clip.bits = bits;
+		clip.frequency = frequency;
+	}
+
+	@Override
+	public synchronized int getBufferi(int buffer, int param) {
+		Clip clip = getClip(buffer);
+		if (clip == null)
+			return 0;
+		switch (param) {
+		case AL_SIZE:
+			return clip.frames * clip.getFrameSize();
+		case AL_FREQUENCY:
+			return clip.frequency;
+		case AL_BITS:
+			return clip.bits;
+		case AL_CHANNELS:
+			return clip.channels;
+		default:
+			setError(AL_INVALID_ENUM);
+			return 0;
+		}
+	}
+
+	@Override
+	public synchronized void play(int source) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return;
+		if (voice.state == AL_PAUSED) {
+			voice.state = AL_PLAYING;
+			return;
+		}
+		voice.current = 0;
+		voice.cursor = 0;
+		if (voice.pendingOffset >= 0) {
+			seek(voice, voice.pendingOffset);
+			voice.pendingOffset = -1;
+		}
+		// a source without buffers is done right away
+		voice.state = voice.queueLength == 0 ? AL_STOPPED : AL_PLAYING;
+	}
+
+	@Override
+	public synchronized void stop(int source) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return;
+		voice.state = AL_STOPPED;
+		voice.pendingOffset = -1;
+	}
+
+	@Override
+	public synchronized void rewind(int source) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return;
+		voice.state = AL_INITIAL;
+		voice.current = 0;
+		voice.cursor = 0;
+		voice.pendingOffset = -1;
+	}
+
+	@Override
+	public synchronized void pause(int source) {
+		Voice voice = getVoice(source);
+		if (voice != null && voice.state == AL_PLAYING)
+			voice.state = AL_PAUSED;
+	}
+
+	@Override
+	public synchronized void sourcei(int source, int param, int value) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return;
+		switch (param) {
+		case AL_BUFFER:
+			if (value == 0) {
+				voice.queueLength = 0;
+			} else {
+				Clip clip = getClip(value);
+				if (clip == null)
+					return;
+				voice.queueLength = 0;
+				voice.enqueue(clip);
+			}
+			voice.current = 0;
+			voice.cursor = 0;
+			break;
+		case AL_LOOPING:
+			voice.looping = value == AL_TRUE;
+			break;
+		case AL_BYTE_OFFSET:
+			if (voice.state == AL_PLAYING || voice.state == AL_PAUSED)
+				seek(voice, value);
+			else
+				voice.pendingOffset = value; // takes effect on the next play
+			break;
+		default:
+			setError(AL_INVALID_ENUM);
+		}
+	}
+
+	/** moves the voice to the given byte offset, counted from the start of its queue */
+	private void seek(Voice voice, int byteOffset) {
+		voice.current = 0;
+		for (int i = 0; i < voice.queueLength; i++) {
+			Clip clip = voice.queue[i];
+			int size = clip.frames * clip.getFrameSize();
+			if (byteOffset < size) {
+				voice.current = i;
+				voice.cursor = byteOffset / clip.getFrameSize();
+				return;
+			}
+			byteOffset -= size;
+		}
+		setError(AL_INVALID_VALUE);
+	}
+
+	@Override
+	public synchronized void sourcef(int source, int param, float value) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return;
+		switch (param) {
+		case AL_PITCH:
+			voice.pitch = value;
+			break;
+		case AL_GAIN:
+			voice.gain = value;
+			break;
+		case AL_ROLLOFF_FACTOR:
+			voice.rolloff = value;
+			break;
+		default:
+			setError(AL_INVALID_ENUM);
+		}
+	}
+
+	@Override
+	public synchronized void source3f(int source, int param, float x, float y, float z) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return;
+		switch (param) {
+		case AL_POSITION:
+			voice.posX = x;
+			voice.posY = y;
+			voice.posZ = z;
+			break;
+		case AL_VELOCITY:
+			// there's no doppler effect, the velocity is only stored
+			voice.velX = x;
+			voice.velY = y;
+			voice.velZ = z;
+			break;
+		default:
+			setError(AL_INVALID_ENUM);
+		}
+	}
+
+	@Override
+	public synchronized int getSourcei(int source, int param) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return 0;
+		switch (param) {
+		case AL_BYTE_OFFSET:
+			if (voice.state != AL_PLAYING && voice.state != AL_PAUSED)
+				return 0;
+			int offset = 0;
+			for (int i = 0; i < voice.current; i++) {
+				offset += voice.queue[i].frames * voice.queue[i].getFrameSize();
+			}
+			return offset + (int) voice.cursor * voice.queue[voice.current].getFrameSize();
+		case AL_SOURCE_STATE:
+			return voice.state;
+		case AL_BUFFERS_PROCESSED:
+			return voice.getProcessed();
+		case AL_BUFFERS_QUEUED:
+			return voice.queueLength;
+		default:
+			setError(AL_INVALID_ENUM);
+			return 0;
+		}
+	}
+
+	@Override
+	public synchronized void queueBuffer(int source, int buffer) {
+		Voice voice = getVoice(source);
+		Clip clip = getClip(buffer);
+		if (voice != null && clip != null)
+			voice.enqueue(clip);
+	}
+
+	@Override
+	public synchronized int unqueueBuffer(int source) {
+		Voice voice = getVoice(source);
+		if (voice == null)
+			return 0;
+		if (voice.getProcessed() == 0) {
+			setError(AL_INVALID_VALUE);
+			return 0;
+		}
+		Clip clip = voice.queue[0];
+		System.arraycopy(voice.queue, 1, voice.queue, 0, voice.queueLength - 1);
+		voice.queueLength--;
+		voice.queue[voice.queueLength] = null;
+		if (voice.current > 0)
+			voice.current--;
+		return clip.id;
+	}
+
+	@Override
+	public synchronized void listener3f(int param, float x, float y, float z) {
+		switch (param) {
+		case AL_POSITION:
+			listenerX = x;
+			listenerY = y;
+			listenerZ = z;
+			break;
+		case AL_VELOCITY:
+			// only needed for the doppler effect, which isn't simulated
+			break;
+		default:
+			setError(AL_INVALID_ENUM);
+		}
+	}
+
+	@Override
+	public synchronized void listenerOrientation(FloatBuffer orientation) {
+		int p = orientation.position();
+		float atX = orientation.get(p), atY = orientation.get(p + 1), atZ = orientation.get(p + 2);
+		float upX = orientation.get(p + 3), upY = orientation.get(p + 4), upZ = orientation.get(p + 5);
+		// right = at x up
+		float x = atY * upZ - atZ * upY;
+		float y = atZ * upX - atX * upZ;
+		float z = atX * upY - atY * upX;
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		if (length == 0) {
+			setError(AL_INVALID_VALUE);
+			return;
+		}
+		rightX = x / length;
+		rightY = y / length;
+		rightZ = z / length;
+	}
+
+	private Voice getVoice(int source) {
+		Voice voice = source > 0 && source <= voices.size() ? voices.get(source - 1) : null;
+		if (voice == null)
+			setError(AL_INVALID_NAME);
+		return voice;
+	}
+
+	private Clip getClip(int buffer) {
+		Clip clip = buffer > 0 && buffer <= clips.size() ? clips.get(buffer - 1) : null;
+		if (clip == null)
+			setError(AL_INVALID_NAME);
+		return clip;
+	}
+
+	/** a buffer: its samples as interleaved floats between -1 and 1, plus the format they were given in */
+	private static class Clip {
+		private final int id;
+		private float[] samples = new float[0];
+		private int frames = 0;
+		private int channels = 1;
+		private int bits = 16;
+		private int frequency = 0;
+
+		private Clip(int id) {
+			this.id = id;
+		}
+
+		/** bytes per frame in the format the data was given in */
+		private int getFrameSize() {
+			return channels * bits / 8;
+		}
+	}
+
+	/** a source and its playback state */
+	private static class Voice {
+		private int state = AL_INITIAL;
+		private Clip[] queue = new Clip[4];
+		private int queueLength = 0;
+		private int current = 0; // index of the buffer in the queue that is playing
+		private double cursor = 0; // playback position in frames of the current buffer
+		private int pendingOffset = -1; // byte offset to start at on the next play, -1 if none
+		private boolean looping = false;
+		private float pitch = 1, gain = 1, rolloff = 1;
+		private float posX, posY, posZ, velX, velY, velZ;
+
+		private void enqueue(Clip clip) {
+			if (queueLength == queue.length)
+				queue = Arrays.copyOf(queue, queue.length * 2);
+			queue[queueLength++] = clip;
+		}
+
+		/** buffers at the head of the queue that have been played completely. A stopped source has played all of them */
+		private int getProcessed() {
+			if (state == AL_STOPPED)
+				return queueLength;
+			if (state == AL_INITIAL || looping)
+				return 0;
+			return current;
+		}
+	}
+
+}
@@ -4,8 +4,12 @@ import java.io.IOException;
 import java.util.Random;
 
 import org.lwjgl.LWJGLException;
+import org.lwjgl.openal.AL10;
 import org.lwjgl.openal.OpenALException;
 
+/**
+ * A sound that can be played back. A sound only gets a source of the sound device while it is played. If it can't get one, or loses its source to a sound with a higher priority, it becomes virtual: it keeps track of where its playback would be and gets a source again at that position as soon as one is available. While SoundManager's audio thread runs, calls from other threads get queued and take effect on its next tick
+ */
 public class Sound {
 
 	public static final int PRIORITY_DELETE = 0;
@@ -13,30 +17,30 @@ public class Sound {
 	public static final int PRIORITY_MODERATE = 2;
 	public static final int PRIORITY_HIGH = 3;
 
-	private ALSource source = null;
+	// fields read by the getters are volatile, so other threads see what the audio thread last wrote
+	private volatile ALSource source = null;
 	private ALBuffer[] buffers;
 	private int selectedBuffer = 0;
 	public int priority = PRIORITY_MODERATE;
 
-	private float posX, posY, posZ, velX, velY, velZ;
-	private float gain = 1f;
-	private float pitch = 1f;
-	private boolean looping = false;
-	private float offset = 0f;
-	private Random random = new Random();
-	private SoundCategory category;
+	private volatile float posX, posY, posZ, velX, velY, velZ;
+	private volatile float gain = 1f;
+	private volatile float pitch = 1f;
+	private volatile boolean looping = false;
+	private volatile float offset = 0f; // playback position between 0 and 1, kept up to date while virtual
+	private volatile int state = AL10.AL_INITIAL; // playback state, also kept while the sound has no source
+	volatile int virtualIndex = -1; // position in SoundManager's list of virtual sounds, -1 if not virtual
+	private static final Random random = new Random(); // shared by all sounds, so creating a sound doesn't create one
+	private volatile SoundCategory category;
 
 	public Sound(SoundCategory category, float posX, float posY, float posZ, String... filenames) {
 		this(category, filenames, posX, posY, posZ, 0, 0, 0, false, 1f, 1f);
 	}
 
 	public Sound(SoundCategory category, String[] filenames, float posX, float posY, float posZ, float velX, float velY, float velZ, boolean looping, float gain, float pitch) {
-		try {
-			this.buffers = ALBufferBank.getBuffers(filenames);
-		} catch (OpenALException | IOException | LWJGLException e) {
-			System.out.println("Error creating buffer");
-			e.printStackTrace();
-		}
+		// loading touches the sound device, so the audio thread does it before any queued call of this sound
+		if (!Command.queue(Command.SOUND_LOAD_BUFFERS, this, filenames))
+			loadBuffers(filenames);
 		this.category = category;
 		this.posX = posX;
 		this.posY = posY;
@@ -49,16 +53,76 @@ public class Sound {
 		this.pitch = pitch;
 	}
 
-	void setUncoupled() {
+	/** creates a sound playing the given, already loaded buffers. Used for pooled sounds that manage their buffers themselves */
+	Sound(SoundCategory category, ALBuffer[] buffers) {
+		this.category = category;
+		this.buffers = buffers;
+	}
+
+	void loadBuffers(String[] filenames) {
+		try {
+			this.buffers = ALBufferBank.acquireBuffers(filenames);
+		} catch (OpenALException | IOException | LWJGLException e) {
+			System.out.println("Error creating buffer");
+			e.printStackTrace();
+		}
+	}
+
+	/** Stops the playback, frees the source and releases the buffers, so the buffer bank may evict them. The sound must not be used afterwards */
+	public void destroy() {
+		if (Command.queue(Command.SOUND_DESTROY, this))
+			return;
 		stop();
+		if (source != null)
+			SoundManager.releaseSource(source);
+		if (buffers != null) {
+			ALBufferBank.releaseBuffers(buffers);
+			buffers = null;
+		}
+	}
+
+	/** returns whether this sound currently has a source to play through */
+	boolean isCoupled() {
+		return source != null;
+	}
+
+	/** returns whether this sound is playing without a source at the moment */
+	public boolean isVirtual() {
+		return virtualIndex >= 0;
+	}
+
+	/** couples this sound with the given source and brings the source up to the sound's state */
+	void couple(ALSource source) {
+		this.source = source;
+		source.couple(this);
+		initSource();
+	}
+
+	/** gets called when the source is taken away from this sound. A playing sound continues virtually */
+	void setUncoupled() {
+		if (state == AL10.AL_PLAYING || state == AL10.AL_PAUSED)
+			offset = source.queryOffset();
+		source.stop();
 		source = null;
+		if (state == AL10.AL_PLAYING)
+			SoundManager.addVirtualSound(this);
+	}
+
+	/** marks the playback as finished */
+	void finish() {
+		state = AL10.AL_STOPPED;
+		offset = 0;
 	}
 
 	public void randomizeBuffer() {
+		if (Command.queue(Command.SOUND_RANDOMIZE_BUFFER, this))
+			return;
 		selectBuffer(random.nextInt(buffers.length));
 	}
 
 	public void nextBuffer() {
+		if (Command.queue(Command.SOUND_NEXT_BUFFER, this))
+			return;
 		if (selectedBuffer + 1 == buffers.length) {
 			selectBuffer(0);
 		} else {
@@ -67,52 +131,112 @@ public class Sound {
 	}
 
 	public void play() {
-		getSource().play();
+		if (Command.queue(Command.SOUND_PLAY, this))
+			return;
+		if (state == AL10.AL_PLAYING || state == AL10.AL_STOPPED)
+			offset = 0;
+		state = AL10.AL_PLAYING;
+		ALBufferBank.played(getSelectedBuffer());
+		if (source != null) {
+			source.play();
+			return;
+		}
+		// a sound too quiet to be heard doesn't take a source away from others
+		ALSource newSource = SoundManager.isAudible(this, false) ? SoundManager.getFreeSource(priority) : null;
+		if (newSource != null)
+			couple(newSource);
+		else if (!isVirtual())
+			SoundManager.addVirtualSound(this);
 	}
 
 	public void stop() {
-		getSource().stop();
+		if (Command.queue(Command.SOUND_STOP, this))
+			return;
+		state = AL10.AL_STOPPED;
+		offset = 0;
+		// the source is free for other sounds right away, not only once update() notices the stop
+		if (source != null)
+			SoundManager.releaseSource(source);
+		if (isVirtual())
+			SoundManager.removeVirtualSound(this);
 	}
 
 	public void pause() {
-		getSource().pause();
+		if (Command.queue(Command.SOUND_PAUSE, this))
+			return;
+		if (state != AL10.AL_PLAYING)
+			return;
+		state = AL10.AL_PAUSED;
+		if (source != null)
+			source.pause();
+		if (isVirtual())
+			SoundManager.removeVirtualSound(this);
 	}
 
 	public boolean isStopped() {
-		return getSource().isStopped();
+		return state == AL10.AL_STOPPED;
 	}
 
 	public boolean isPaused() {
-		return getSource().isPaused();
+		return state == AL10.AL_PAUSED;
 	}
 
 	public boolean isPlaying() {
-		return getSource().isPlaying();
+		return state == AL10.AL_PLAYING;
+	}
+
+	/** Gets called once per SoundManager.update() while this sound is coupled to a source */
+	void update() {
+		if (state == AL10.AL_PLAYING && source.isStopped()) {
+			if (looping) {
+				// TODO distinguish between multi-buffer handling
+				source.play();
+			} else {
+				finish();
+			}
+		}
 	}
 
-	ALSource getSource() {
-		if (source == null) {
-			source = SoundManager.getFreeSource(priority);
-			source.couple(this);
-			initSource();
+	/**
+	 * Advances the playback position of a virtual sound
+	 *
+	 * @param seconds
+	 *            time passed since the last advance
+	 * @return false if the playback finished
+	 */
+	boolean advance(float seconds) {
+		ALBuffer buffer = getSelectedBuffer();
+		float duration = buffer == null ? 0 : buffer.getDuration();
+		if (duration <= 0) {
+			finish();
+			return false;
+		}
+		offset += seconds * pitch / duration;
+		if (offset >= 1) {
+			if (!looping) {
+				finish();
+				return false;
+			}
+			offset -= (int) offset;
 		}
+		return true;
+	}
+
+	/** Returns the source this sound is currently played through, or null if it has none */
+	ALSource getSource() {
 		return source;
 	}
 
 	void initSource() {
 		selectBuffer(selectedBuffer);
-		setGain(gain);
+		updateGain();
 		setLooping(looping);
-		setOffset(offset);
 		setPitch(pitch);
 		setPosition(posX, posY, posZ);
 		setVelocity(velX, velY, velZ);
-		if (isPlaying())
-			play();
-		if (isPaused())
-			pause();
-		if (isStopped())
-			stop();
+		source.setOffset(offset);
+		if (state == AL10.AL_PLAYING)
+			source.play();
 	}
 
 	ALBuffer[] getBuffers() {
@@ -120,12 +244,15 @@ public class Sound {
 	}
 
 	ALBuffer getSelectedBuffer() {
+		if (buffers == null || buffers.length == 0)
+			return null;
 		return buffers[selectedBuffer];
 	}
 
 	void selectBuffer(int buffer) {
 		this.selectedBuffer = buffer;
-		getSource().setBuffer(buffers[selectedBuffer]);
+		if (source != null)
+			source.setBuffer(buffers[selectedBuffer]);
 	}
 
 	public float getPositionX() {
@@ -141,7 +268,10 @@ public class Sound {
 	}
 
 	public void setPosition(float posX, float posY, float posZ) {
-		getSource().setPosition(posX, posY, posZ);
+		if (Command.queue(Command.SOUND_SET_POSITION, this, posX, posY, posZ))
+			return;
+		if (source != null)
+			source.setPosition(posX, posY, posZ);
 		this.posX = posX;
 		this.posY = posY;
 		this.posZ = posZ;
@@ -160,7 +290,10 @@ public class Sound {
 	}
 
 	public void setVelocity(float velX, float velY, float velZ) {
-		getSource().setVelocity(velX, velY, velZ);
+		if (Command.queue(Command.SOUND_SET_VELOCITY, this, velX, velY, velZ))
+			return;
+		if (source != null)
+			source.setVelocity(velX, velY, velZ);
 		this.velX = velX;
 		this.velY = velY;
 		this.velZ = velZ;
@@ -171,12 +304,17 @@ public class Sound {
 	}
 
 	public void setGain(float gain) {
+		if (Command.queue(Command.SOUND_SET_GAIN, this, gain))
+			return;
 		this.gain = gain;
 		updateGain();
 	}
 
 	public void updateGain() {
-		getSource().setGain(gain * category.getGain());
+		if (Command.queue(Command.SOUND_UPDATE_GAIN, this))
+			return;
+		if (source != null)
+			source.setGain(gain * category.getGain());
 	}
 
 	public float getPitch() {
@@ -184,17 +322,30 @@ public class Sound {
 	}
 
 	public void setPitch(float pitch) {
-		getSource().setPitch(pitch);
+		if (Command.queue(Command.SOUND_SET_PITCH, this, pitch))
+			return;
+		if (source != null)
+			source.setPitch(pitch);
 		this.pitch = pitch;
 	}
 
+	/** Gets the current playback position (between 0 and 1) */
 	public float getOffset() {
+		ALSource source = this.source; // read once, another thread may see the source go in between
+		if (source != null && state != AL10.AL_STOPPED)
+			return source.getOffset();
 		return offset;
 	}
 
+	/** Sets the playback position (between 0 and 1). A stopped sound starts playing from there on the next play() */
 	public void setOffset(float offset) {
-		getSource().setOffset(offset);
+		if (Command.queue(Command.SOUND_SET_OFFSET, this, offset))
+			return;
+		if (source != null)
+			source.setOffset(offset);
 		this.offset = offset;
+		if (state == AL10.AL_STOPPED)
+			state = AL10.AL_INITIAL;
 	}
 
 	public boolean isLooping() {
@@ -202,7 +353,10 @@ public class Sound {
 	}
 
 	public void setLooping(boolean looping) {
-		getSource().setLooping(looping);
+		if (Command.queue(Command.SOUND_SET_LOOPING, this, looping))
+			return;
+		if (source != null)
+			source.setLooping(looping);
 		this.looping = looping;
 	}
 
@@ -211,10 +365,14 @@ public class Sound {
 	}
 
 	public void setCategory(SoundCategory category) {
+		if (Command.queue(Command.SOUND_SET_CATEGORY, this, category))
+			return;
 		this.category = category;
 	}
 
 	public void randomizePitch(float f) {
+		if (Command.queue(Command.SOUND_RANDOMIZE_PITCH, this, f))
+			return;
 		setPitch((1 - 0.5f * f) + random.nextFloat() * f);
 	}
 
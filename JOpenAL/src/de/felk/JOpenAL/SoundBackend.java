@@ -0,0 +1,82 @@
+package de.felk.JOpenAL;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.LWJGLException;
+
+/**
+ * The operations ALHelper needs from whatever plays the sound. Mirrors the part of the OpenAL API this library uses, with the same parameter and error constants, so ALHelper works the same on every backend. See OpenALBackend and SoftwareMixer
+ */
+public interface SoundBackend {
+
+	/** opens the device, see AL.create() */
+	public void create() throws LWJGLException;
+
+	/** closes the device, see AL.destroy() */
+	public void destroy();
+
+	/** stores the device's capabilities in ALHelper.MONO_SOURCES, STEREO_SOURCES and FREQUENCY */
+	public void readDeviceAttributes();
+
+	/** returns and clears the first error raised since the last call, AL_NO_ERROR if none */
+	public int getError();
+
+	/** returns and clears the error of the device, ALC_NO_ERROR if none, see alcGetError() */
+	public int getDeviceError();
+
+	public boolean isExtensionPresent(String name);
+
+	public int genSource();
+
+	public void genSources(IntBuffer ids);
+
+	public int genBuffer();
+
+	public void genBuffers(IntBuffer ids);
+
+	public void deleteSource(int source);
+
+	public void deleteSources(IntBuffer ids);
+
+	public void deleteBuffer(int buffer);
+
+	public void deleteBuffers(IntBuffer ids);
+
+	public void bufferData(int buffer, int format, ByteBuffer data, int frequency);
+
+	/** returns AL_SIZE, AL_FREQUENCY, AL_BITS or AL_CHANNELS of a buffer */
+	public int getBufferi(int buffer, int param);
+
+	public void play(int source);
+
+	public void stop(int source);
+
+	public void rewind(int source);
+
+	public void pause(int source);
+
+	/** sets AL_BUFFER, AL_LOOPING or AL_BYTE_OFFSET of a source */
+	public void sourcei(int source, int param, int value);
+
+	/** sets AL_PITCH, AL_GAIN or AL_ROLLOFF_FACTOR of a source */
+	public void sourcef(int source, int param, float value);
+
+	/** sets AL_POSITION or AL_VELOCITY of a source */
+	public void source3f(int source, int param, float x, float y, float z);
+
+	/** returns AL_BYTE_OFFSET, AL_SOURCE_STATE, AL_BUFFERS_PROCESSED or AL_BUFFERS_QUEUED of a source */
+	public int getSourcei(int source, int param);
+
+	public void queueBuffer(int source, int buffer);
+
+	public int unqueueBuffer(int source);
+
+	/** sets AL_POSITION or AL_VELOCITY of the listener */
+	public void listener3f(int param, float x, float y, float z);
+
+	/** sets the listener's orientation: the direction it faces followed by its up direction */
+	public void listenerOrientation(FloatBuffer orientation);
+
+}
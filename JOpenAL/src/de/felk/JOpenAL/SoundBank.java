@@ -0,0 +1,213 @@
+package de.felk.JOpenAL;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.lwjgl.openal.OpenALException;
+
+/**
+ * A single file holding many already decoded sounds, so loading them needs neither a file per sound nor any decoding. The file starts with an index of all sounds (name, PCMConverter variant, offset, length, AL format and sample rate), followed by their PCM data. Loading maps the whole file into memory once and passes each sound's part of it straight to the sound device
+ */
+public class SoundBank {
+
+	private static final int MAGIC = 0x4A53424B; // "JSBK"
+	private static final int VERSION = 2;
+	private static final int FIXED_HEADER_SIZE = 4 + 4 + 1 + 4;
+	private static final int ENTRY_SIZE = 2 + 2 + 8 + 4 + 4 + 4; // without the name and variant bytes
+	private static final int ALIGNMENT = 16; // every sound's data starts at a multiple of this
+
+	/**
+	 * Packs all sound files in the given directory and its subdirectories into a bank. Each sound gets stored under its path relative to the directory, with '/' as separator, so it can be requested by the same name as from res/sound/. Sounds get converted according to the current PCMConverter settings, like when loading them from res/sound/. As compact sounds and RATE_DEVICE depend on the sound device, create it first if they are used
+	 *
+	 * @param directory
+	 *            directory containing the sound files
+	 * @param bank
+	 *            file to write the bank to, gets replaced if it exists
+	 */
+	public static void build(File directory, File bank) throws IOException {
+		List<String> names = new ArrayList<String>();
+		collect(directory, "", names);
+
+		byte[][] encodedNames = new byte[names.size()][];
+		byte[][] variants = new byte[names.size()][];
+		long headerSize = FIXED_HEADER_SIZE;
+		for (int i = 0; i < encodedNames.length; i++) {
+			encodedNames[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+			if (encodedNames[i].length > 0xFFFF)
+				throw new IOException("file name too long: " + names.get(i));
+			// the settings don't change while building, so the variant is known before converting
+			variants[i] = PCMConverter.getVariant(names.get(i)).getBytes(StandardCharsets.UTF_8);
+			headerSize += ENTRY_SIZE + encodedNames[i].length + variants[i].length;
+		}
+
+		// the header size only depends on the names, so the data can be written right behind it while decoding, one sound at a time
+		long[] offsets = new long[names.size()];
+		int[] lengths = new int[names.size()];
+		int[] formats = new int[names.size()];
+		int[] sampleRates = new int[names.size()];
+		File temp = File.createTempFile(bank.getName(), ".tmp", bank.getAbsoluteFile().getParentFile());
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			long position = align(headerSize);
+			for (int i = 0; i < names.size(); i++) {
+				// the same conversion as loading from res/sound/, so a banked sound is resampled and encoded the same way
+				PCMData pcm = PCMConverter.convert(names.get(i), ALBufferBank.decode(new File(directory, names.get(i))));
+				try {
+					ByteBuffer data = pcm.getData().duplicate();
+					offsets[i] = position;
+					lengths[i] = data.remaining();
+					formats[i] = pcm.getFormat();
+					sampleRates[i] = pcm.getSampleRate();
+					while (data.hasRemaining())
+						position += channel.write(data, position);
+					position = align(position);
+				} finally {
+					pcm.dispose();
+				}
+			}
+
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream((int) headerSize);
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			// PCM samples are stored in the byte order of the machine that decoded them
+			header.writeByte(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+			header.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				header.writeShort(encodedNames[i].length);
+				header.write(encodedNames[i]);
+				header.writeShort(variants[i].length);
+				header.write(variants[i]);
+				header.writeLong(offsets[i]);
+				header.writeInt(lengths[i]);
+				header.writeInt(formats[i]);
+				header.writeInt(sampleRates[i]);
+			}
+			header.flush();
+			ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes.toByteArray());
+			long headerPosition = 0;
+			while (headerBuffer.hasRemaining())
+				headerPosition += channel.write(headerBuffer, headerPosition);
+			// make sure the file reaches the end of the last block, even if it was empty
+			raf.setLength(Math.max(raf.length(), position));
+		} finally {
+			raf.close();
+		}
+		// like the PCMCache, never leave a half written bank behind
+		Files.move(temp.toPath(), bank.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads all sounds of the given bank into the ALBufferBank, under the names they were packed with. Sounds that are loaded already are kept. Has to be called from the AL thread. Fails without loading anything if the bank is damaged or was built with other PCMConverter settings than the current ones
+	 *
+	 * @return the names of the sounds in the bank
+	 */
+	public static List<String> load(File bank) throws IOException, OpenALException {
+		RandomAccessFile raf = new RandomAccessFile(bank, "r");
+		MappedByteBuffer mapped;
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("sound bank larger than 2 GiB: " + bank);
+			// one mapping for the whole bank, it stays valid after the channel is closed
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+
+		ByteBuffer header = mapped.duplicate();
+		header.order(ByteOrder.BIG_ENDIAN);
+		if (header.remaining() < FIXED_HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+			throw new IOException("not a sound bank: " + bank);
+		boolean bigEndian = header.get() != 0;
+		if (bigEndian != (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN))
+			throw new IOException("sound bank was built for a different byte order: " + bank);
+		int count = header.getInt();
+		// every entry takes at least ENTRY_SIZE bytes, so a damaged count can't make the lists huge
+		if (count < 0 || count > header.remaining() / ENTRY_SIZE)
+			throw new IOException("sound bank is truncated: " + bank);
+
+		// the whole index gets checked before anything goes to the sound device
+		List<String> names = new ArrayList<String>(count);
+		long[] offsets = new long[count];
+		int[] lengths = new int[count];
+		int[] formats = new int[count];
+		int[] sampleRates = new int[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[header.getShort() & 0xFFFF];
+				header.get(name);
+				byte[] variant = new byte[header.getShort() & 0xFFFF];
+				header.get(variant);
+				offsets[i] = header.getLong();
+				lengths[i] = header.getInt();
+				formats[i] = header.getInt();
+				sampleRates[i] = header.getInt();
+				if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > mapped.capacity())
+					throw new IOException("sound bank is truncated: " + bank);
+
+				String filename = new String(name, StandardCharsets.UTF_8);
+				if (!PCMConverter.getVariant(filename).equals(new String(variant, StandardCharsets.UTF_8)))
+					throw new IOException("sound bank was built with other PCMConverter settings for " + filename + ": " + bank);
+				names.add(filename);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("sound bank is truncated: " + bank, e);
+		}
+
+		for (int i = 0; i < count; i++) {
+			ByteBuffer data = mapped.duplicate();
+			data.limit((int) offsets[i] + lengths[i]);
+			data.position((int) offsets[i]);
+			data = data.slice().order(ByteOrder.nativeOrder());
+			ALBufferBank.addSound(names.get(i), new PCMData(data, formats[i], sampleRates[i]));
+		}
+		return names;
+	}
+
+	/** adds the relative names of all sound files below the given directory, sorted so banks of the same directory come out identical */
+	private static void collect(File directory, String prefix, List<String> names) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("not a directory: " + directory);
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				collect(file, prefix + file.getName() + "/", names);
+				continue;
+			}
+			String extension = ALBufferBank.getExtension(file);
+			if ("wav".equals(extension) || "ogg".equals(extension) || "mp3".equals(extension))
+				names.add(prefix + file.getName());
+		}
+	}
+
+	private static long align(long position) {
+		return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/** Packs a directory from the command line: SoundBank directory bank */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("usage: SoundBank <directory> <bank>");
+			return;
+		}
+		build(new File(args[0]), new File(args[1]));
+	}
+
+}
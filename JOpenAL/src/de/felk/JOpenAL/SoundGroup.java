@@ -0,0 +1,217 @@
+package de.felk.JOpenAL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A named set of sound files that gets loaded and released as a unit, for example everything one level or menu needs. A loaded group holds a reference on each of its buffers, so they can't be evicted. Releasing it frees the buffers no other group or sound uses anymore right away, while shared ones stay loaded. For a level transition, load the next group and release the previous one once the next is loaded, so the sounds both need never leave the sound device
+ */
+public class SoundGroup {
+
+	public static final int UNLOADED = 0;
+	public static final int LOADING = 1; // decoding and uploading in the background
+	public static final int LOADED = 2; // every buffer is on the sound device and held by the group
+	public static final int FAILED = 3; // a file could not be loaded, the group holds nothing
+
+	private static final ConcurrentHashMap<String, SoundGroup> groups = new ConcurrentHashMap<String, SoundGroup>();
+	// groups waiting for their files to be uploaded. Only touched on the AL thread
+	private static final ArrayList<SoundGroup> pending = new ArrayList<SoundGroup>();
+	// loads of groups released while loading, what they upload gets freed once it is there. Only touched on the AL thread
+	private static final ArrayList<Future<ALBuffer>> abandoned = new ArrayList<Future<ALBuffer>>();
+
+	private final String name;
+	private final String[] filenames;
+	private volatile int state = UNLOADED;
+	private List<Future<ALBuffer>> loads = null;
+	private ALBuffer[] buffers = null; // retained while loaded
+
+	private SoundGroup(String name, String[] filenames) {
+		this.name = name;
+		this.filenames = filenames.clone();
+	}
+
+	/**
+	 * Defines a group of the given files. Replaces a former group of that name, which has to be released first
+	 * 
+	 * @throws IllegalStateException
+	 *             if a group of that name is still loading or loaded
+	 */
+	public static SoundGroup define(String name, String... filenames) {
+		SoundGroup group = new SoundGroup(name, filenames);
+		while (true) {
+			SoundGroup former = groups.putIfAbsent(name, group);
+			if (former == null)
+				return group;
+			if (former.state == LOADING || former.state == LOADED)
+				throw new IllegalStateException("sound group " + name + " has to be released before it can be redefined");
+			// fails if another thread replaced it in the meantime, then that one gets checked
+			if (groups.replace(name, former, group))
+				return group;
+		}
+	}
+
+	/** Returns the group of the given name, or null if there is none */
+	public static SoundGroup get(String name) {
+		return groups.get(name);
+	}
+
+	/** Starts loading the files of this group in the background. The group becomes LOADED in the SoundManager.update() that has all of them uploaded. Does nothing if it is loading or loaded already */
+	public void load() {
+		if (Command.queue(Command.LOAD_GROUP, this))
+			return;
+		if (state == LOADING || state == LOADED)
+			return;
+		ArrayList<Future<ALBuffer>> started = new ArrayList<Future<ALBuffer>>(filenames.length);
+		for (String filename : filenames) {
+			started.add(ALBufferBank.getSoundAsync(filename));
+		}
+		loads = started;
+		state = LOADING;
+		pending.add(this);
+	}
+
+	/** Releases the group's buffers, freeing the ones nothing else uses anymore. A group still loading stops doing so */
+	public void release() {
+		if (Command.queue(Command.RELEASE_GROUP, this))
+			return;
+		if (state == LOADING) {
+			pending.remove(this);
+			// the loads can't be cancelled, as sounds may wait for them as well
+			abandoned.addAll(loads);
+		}
+		if (buffers != null) {
+			ALBufferBank.unloadBuffers(buffers);
+			buffers = null;
+		}
+		loads = null;
+		state = UNLOADED;
+	}
+
+	/** Takes over the groups whose files are all uploaded by now, and frees what released groups got uploaded. Gets called by SoundManager.update() */
+	static void updatePending() {
+		for (int i = pending.size() - 1; i >= 0; i--) {
+			SoundGroup group = pending.get(i);
+			if (group.isUploaded()) {
+				pending.remove(i);
+				group.acquire();
+			}
+		}
+		for (int i = abandoned.size() - 1; i >= 0; i--) {
+			Future<ALBuffer> load = abandoned.get(i);
+			if (load.isDone()) {
+				abandoned.remove(i);
+				unload(load);
+			}
+		}
+	}
+
+	/** frees the buffer of the given finished load, unless a sound or group uses it or another group is loading its file */
+	private static void unload(Future<ALBuffer> load) {
+		ALBuffer buffer;
+		try {
+			buffer = load.get();
+		} catch (InterruptedException | ExecutionException e) {
+			// nothing got uploaded
+			return;
+		}
+		for (SoundGroup group : pending) {
+			if (group.contains(buffer.filename))
+				return;
+		}
+		ALBufferBank.unloadBuffer(buffer);
+	}
+
+	/** returns whether the given file is part of this group */
+	private boolean contains(String filename) {
+		for (String own : filenames) {
+			if (own.equals(filename))
+				return true;
+		}
+		return false;
+	}
+
+	/** returns whether every load of this group has finished */
+	private boolean isUploaded() {
+		for (Future<ALBuffer> load : loads) {
+			if (!load.isDone())
+				return false;
+		}
+		return true;
+	}
+
+	/** retains all buffers at once, or none if a file failed to load. Then the files that did load get freed again, like those of a group released while loading */
+	private void acquire() {
+		List<Future<ALBuffer>> finished = loads;
+		loads = null;
+		for (int i = 0; i < finished.size(); i++) {
+			try {
+				finished.get(i).get();
+			} catch (InterruptedException | ExecutionException e) {
+				System.out.println("could not load " + filenames[i] + " of sound group " + name);
+				e.printStackTrace();
+				abandoned.addAll(finished);
+				state = FAILED;
+				return;
+			}
+		}
+		try {
+			// a buffer evicted since its upload gets loaded again right here
+			buffers = ALBufferBank.acquireBuffers(filenames);
+			state = LOADED;
+		} catch (Exception e) {
+			System.out.println("could not load sound group " + name);
+			e.printStackTrace();
+			abandoned.addAll(finished);
+			state = FAILED;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** Returns the files of this group */
+	public String[] getFilenames() {
+		return filenames.clone();
+	}
+
+	/** Returns the state of this group, one of UNLOADED, LOADING, LOADED and FAILED */
+	public int getState() {
+		return state;
+	}
+
+	public boolean isLoaded() {
+		return state == LOADED;
+	}
+
+	/** Returns the share of files that have been loaded so far, between 0 and 1. For loading screens */
+	public float getProgress() {
+		if (state == LOADED)
+			return 1f;
+		List<Future<ALBuffer>> current = loads;
+		if (current == null || current.isEmpty())
+			return 0f;
+		int done = 0;
+		for (Future<ALBuffer> load : current) {
+			if (load.isDone())
+				done++;
+		}
+		return (float) done / current.size();
+	}
+
+	/** Returns the buffer of the given file while the group is loaded, for example to play it as one-shot. null if the group isn't loaded or doesn't contain the file */
+	public ALBuffer getBuffer(String filename) {
+		ALBuffer[] current = buffers;
+		if (current == null)
+			return null;
+		for (int i = 0; i < filenames.length; i++) {
+			if (filenames[i].equals(filename))
+				return current[i];
+		}
+		return null;
+	}
+
+}
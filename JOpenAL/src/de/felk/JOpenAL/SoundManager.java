@@ -4,20 +4,45 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 import org.lwjgl.LWJGLException;
-import org.lwjgl.openal.AL;
 import org.lwjgl.openal.OpenALException;
 
 public class SoundManager {
 
 	private static ALSource[] sources;
+	private static VoiceAllocator voices;
+	// playing sounds without a source, see Sound.isVirtual()
+	private static ArrayList<Sound> virtualSounds = new ArrayList<Sound>();
+	private static long lastVirtualUpdate = getTime();
+	private static OneShotPool oneShots = new OneShotPool();
 	// Fill this with filenames and call preLoadSounds() somewhere at the start if you want to load sounds before first use
 	private static ArrayList<String> preLoadedFiles = new ArrayList<String>();
+	// loaders started by preLoadSoundsAsync() that still have files to upload
+	private static ArrayList<BackgroundLoader> loaders = new ArrayList<BackgroundLoader>();
 
 	private static float lastListenerPosX, lastListenerPosY, lastListenerPosZ;
-	private static float lastUpdateTime = System.nanoTime() / 1000000000;
+	private static long lastUpdateTime = getTime();
+	// when set, playback time only moves on with advanceClock() instead of following the wall clock, see setManualClock()
+	private static boolean manualClock;
+	private static long clockTime;
 	public static final int LISTENER_HEIGHT = 2; // since this game is 2D, the listener is considered hovering LISTENER_HEIGHT meters above the world
 	public static final float DEFAULT_ROLLOFF_FACTOR = 0.2f; // how fast sounds get silent with increasing distance (0 = always same volume)
+	public static final float REFERENCE_DISTANCE = 1f; // distance at which sounds play at full gain, OpenAL's default
+	public static final long NO_HANDLE = -1; // one-shot handle that never refers to a playback
 	public static boolean alCreated = false; // just a flag determining if the AL context has already been created
+	private static float listenerPosX, listenerPosY, listenerPosZ;
+	// sounds estimated quieter than this lose their source until they get louder again, 0 disables culling
+	private static float audibilityThreshold = 0f;
+	// a culled sound has to get this many times louder than the threshold to get a source again, so sounds near the threshold don't flicker
+	private static final float AUDIBILITY_HYSTERESIS = 1.5f;
+	private static boolean batched = false; // whether source properties get collected and sent once per update() instead of immediately
+	// how many state queries update() may send to the sound device per call, sources that don't get their turn are polled in the next one
+	private static int pollBudget = 128;
+	private static final int QUERIES_PER_POLL = 2; // offset and state
+	private static int pollStart = 0; // source update() starts polling at, so a tight budget doesn't starve the same sources every time
+	// commands of other threads for the audio thread, see startAudioThread()
+	private static final CommandQueue commands = new CommandQueue(16384);
+	private static volatile AudioThread audioThread = null;
+	private static Thread alThread = null; // the thread that created the AL context
 
 	static {
 		// Create OpenAL context, if not already done
@@ -39,6 +64,7 @@ public class SoundManager {
 		for (int i = 0; i < sources.length; i++) {
 			sources[i] = new ALSource();
 		}
+		voices = new VoiceAllocator(sources);
 	}
 
 	/** creates the OpenAL Context, if it isn't already created */
@@ -46,8 +72,9 @@ public class SoundManager {
 		if (SoundManager.alCreated)
 			return;
 		try {
-			AL.create(); // quick and easy way to initialize OpenAL with the default audio device
+			ALHelper.getBackend().create();
 			alCreated = true;
+			alThread = Thread.currentThread();
 		} catch (LWJGLException e) {
 			System.out.println("Could not create OpenAL (Sound) Context!");
 			e.printStackTrace();
@@ -66,6 +93,8 @@ public class SoundManager {
 
 	/** Reads in all files marked for preloading. Call this at a point you want your programm to preload files */
 	public static void preLoadSounds() {
+		if (Command.queue(Command.PRELOAD_SOUNDS, null))
+			return;
 		for (String filename : preLoadedFiles) {
 			try {
 				ALBufferBank.addSound(filename);
@@ -75,6 +104,21 @@ public class SoundManager {
 		}
 	}
 
+	/**
+	 * Decodes all files marked for preloading on a pool of worker threads. The decoded files get uploaded to the sound device by update(), so keep calling that (or call finish() on the returned loader)
+	 * @return a handle to follow the progress of the loading
+	 */
+	public static BackgroundLoader preLoadSoundsAsync() {
+		BackgroundLoader loader = new BackgroundLoader(new ArrayList<String>(preLoadedFiles));
+		if (!Command.queue(Command.ADD_LOADER, loader))
+			addLoader(loader);
+		return loader;
+	}
+
+	static void addLoader(BackgroundLoader loader) {
+		loaders.add(loader);
+	}
+
 	/**
 	 * Sets the OpenAL Listener
 	 * @param position Position of the listener
@@ -83,15 +127,359 @@ public class SoundManager {
 	 * @param orientationUp direction, the listener's upside is pointing at
 	 */
 	public static void setListener(float[] position, float[] velocity, float[] orientationAt, float[] orientationUp) {
-		ALHelper.setListener(position, velocity, orientationAt, orientationUp);
+		setListener(position[0], position[1], position[2], velocity[0], velocity[1], velocity[2], orientationAt[0], orientationAt[1], orientationAt[2], orientationUp[0], orientationUp[1], orientationUp[2]);
+	}
+
+	/** Like setListener(float[], float[], float[], float[]), without any arrays. Doesn't allocate anything unless the call has to be queued for the audio thread */
+	public static void setListener(float posX, float posY, float posZ, float velX, float velY, float velZ, float atX, float atY, float atZ, float upX, float upY, float upZ) {
+		if (isQueued()) {
+			Command command = Command.obtain(Command.SET_LISTENER, null);
+			command.values[0] = posX;
+			command.values[1] = posY;
+			command.values[2] = posZ;
+			command.values[3] = velX;
+			command.values[4] = velY;
+			command.values[5] = velZ;
+			command.values[6] = atX;
+			command.values[7] = atY;
+			command.values[8] = atZ;
+			command.values[9] = upX;
+			command.values[10] = upY;
+			command.values[11] = upZ;
+			if (Command.submit(command))
+				return;
+		}
+		listenerPosX = posX;
+		listenerPosY = posY;
+		listenerPosZ = posZ;
+		ALHelper.setListener(posX, posY, posZ, velX, velY, velZ, atX, atY, atZ, upX, upY, upZ);
+	}
+
+	/**
+	 * Estimates how loud the given sound is at the listener's position, taking its gain, its category's gain and the distance attenuation into account. Follows OpenAL's default inverse distance clamped model
+	 * @return the estimated gain, 0 is silent and 1 is full volume
+	 */
+	public static float getAudibility(Sound sound) {
+		float dx = sound.getPositionX() - listenerPosX;
+		float dy = sound.getPositionY() - listenerPosY;
+		float dz = sound.getPositionZ() - listenerPosZ;
+		float distance = Math.max((float) Math.sqrt(dx * dx + dy * dy + dz * dz), REFERENCE_DISTANCE);
+		float attenuation = REFERENCE_DISTANCE / (REFERENCE_DISTANCE + DEFAULT_ROLLOFF_FACTOR * (distance - REFERENCE_DISTANCE));
+		return sound.getGain() * sound.getCategory().getGain() * attenuation;
+	}
+
+	/**
+	 * Sets the estimated gain (see getAudibility()) below which playing sounds get culled: they give their source free and continue virtually, without any calls to the sound device, until they are loud enough again
+	 * @param threshold the gain threshold, 0 disables culling
+	 */
+	public static void setAudibilityThreshold(float threshold) {
+		audibilityThreshold = threshold;
+	}
+
+	public static float getAudibilityThreshold() {
+		return audibilityThreshold;
+	}
+
+	/** returns whether the given sound is loud enough to have a source. A culled sound has to be louder than a playing one to count as audible */
+	static boolean isAudible(Sound sound, boolean culled) {
+		if (audibilityThreshold <= 0)
+			return true;
+		float threshold = culled ? audibilityThreshold * AUDIBILITY_HYSTERESIS : audibilityThreshold;
+		return getAudibility(sound) >= threshold;
 	}
 
 	public static void update() {
-		for (int i = 0; i < sources.length; i++) {
-			if (sources[i] != null) {
-				sources[i].update();
+		// the audio thread does this on its own
+		if (isQueued())
+			return;
+		ALBufferBank.uploadPending();
+		for (int i = loaders.size() - 1; i >= 0; i--) {
+			loaders.get(i).upload();
+			if (loaders.get(i).isDone())
+				loaders.remove(i);
+		}
+		SoundGroup.updatePending();
+		long now = getTime();
+		int budget = pollBudget;
+		int start = pollStart;
+		for (int n = 0; n < sources.length; n++) {
+			int i = (start + n) % sources.length;
+			ALSource source = sources[i];
+			if (source == null)
+				continue;
+			Sound sound = source.getSound();
+			if (sound != null && sound.isPlaying() && !isAudible(sound, false)) {
+				// too quiet to be worth a source, the sound continues virtually
+				releaseSource(source);
+				continue;
 			}
+			// only sources that are expected to have changed get queried, see ALSource.schedulePoll()
+			if (source.isPollDue(now)) {
+				if (budget < QUERIES_PER_POLL) {
+					if (budget >= 0) {
+						pollStart = i;
+						budget = -1;
+					}
+				} else {
+					source.update();
+					budget -= QUERIES_PER_POLL;
+				}
+			}
+			source.flush();
 		}
+		updateVirtualSounds((now - lastVirtualUpdate) / 1e9f);
+		lastVirtualUpdate = now;
+		ALHelper.checkDeferredErrors();
+	}
+
+	/**
+	 * Starts a thread that drives the sound system from now on: it calls update() once per tick, and calls to Sound and SoundManager from any other thread get queued up as commands the audio thread runs at the start of its next tick. This lets several threads use sounds without locking. Getters called from other threads may return values that are up to a tick old
+	 * @param tickMillis time between two updates
+	 */
+	public static synchronized void startAudioThread(int tickMillis) {
+		if (audioThread != null)
+			return;
+		commands.open();
+		AudioThread thread = new AudioThread(commands, tickMillis * 1000000L);
+		audioThread = thread;
+		thread.start();
+	}
+
+	/** Stops the audio thread after it ran all commands queued so far. From then on the sound system has to be driven by calling update() again */
+	public static synchronized void stopAudioThread() {
+		AudioThread thread = audioThread;
+		if (thread == null)
+			return;
+		thread.finish();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// commands that slipped in while the thread was exiting still run. Calls made from now on run right away
+		commands.close();
+		audioThread = null;
+		commands.drain();
+	}
+
+	public static boolean isAudioThreadRunning() {
+		return audioThread != null;
+	}
+
+	/** returns whether the current thread is the one calls to the sound device are made from: the audio thread if running, the thread that created the AL context otherwise */
+	static boolean isALThread() {
+		AudioThread thread = audioThread;
+		return thread != null ? thread == Thread.currentThread() : alThread == Thread.currentThread();
+	}
+
+	/** returns whether calls from the current thread have to be queued for the audio thread instead of being executed directly */
+	static boolean isQueued() {
+		AudioThread thread = audioThread;
+		return thread != null && thread != Thread.currentThread();
+	}
+
+	/** queues a command for the audio thread. Returns false if the audio thread is stopping, then the caller has to run it itself */
+	static boolean enqueue(Runnable command) {
+		return commands.add(command);
+	}
+
+	/** Returns how many queued commands are waiting for the audio thread */
+	public static int getCommandQueueDepth() {
+		return commands.getDepth();
+	}
+
+	/** Returns the most commands that were waiting at the start of a tick of the audio thread */
+	public static int getMaxCommandQueueDepth() {
+		return commands.getMaxDepth();
+	}
+
+	/** Returns how many queued commands the audio thread has run */
+	public static long getCommandsExecuted() {
+		return commands.getExecuted();
+	}
+
+	/** Returns the average time in nanoseconds between queuing a command and the audio thread running it */
+	public static long getAverageCommandLatency() {
+		return commands.getAverageLatency();
+	}
+
+	/** Returns the longest time in nanoseconds a command waited for the audio thread */
+	public static long getMaxCommandLatency() {
+		return commands.getMaxLatency();
+	}
+
+	/** Resets the command queue statistics. Only call this while no commands are being run */
+	public static void resetCommandStats() {
+		commands.resetStats();
+	}
+
+	/** returns the time in nanoseconds all playback timing is measured in */
+	static long getTime() {
+		return manualClock ? clockTime : System.nanoTime();
+	}
+
+	/**
+	 * Switches between the wall clock and a manual clock for all playback timing. The manual clock starts at 0 and only moves on with advanceClock(), so playback can be rendered faster than realtime and comes out the same on every run, see OfflineRenderer. Switch before playing any sounds
+	 */
+	public static void setManualClock(boolean manual) {
+		if (manual == manualClock)
+			return;
+		manualClock = manual;
+		clockTime = 0;
+		// time measured by the previous clock means nothing to the new one
+		lastVirtualUpdate = getTime();
+		lastUpdateTime = getTime();
+	}
+
+	public static boolean isManualClock() {
+		return manualClock;
+	}
+
+	/** Moves the manual clock on by the given number of nanoseconds */
+	public static void advanceClock(long nanos) {
+		clockTime += nanos;
+	}
+
+	/** Sets how many state queries update() may send to the sound device per call. Sources that are due but over the budget get polled in the next update() */
+	public static void setPollBudget(int queries) {
+		// at least one source has to be polled, or nothing would ever finish
+		pollBudget = Math.max(QUERIES_PER_POLL, queries);
+	}
+
+	public static int getPollBudget() {
+		return pollBudget;
+	}
+
+	/** advances all virtual sounds and gives the most important ones a source again, if one is free or used by a less important sound */
+	private static void updateVirtualSounds(float elapsedTime) {
+		for (int i = virtualSounds.size() - 1; i >= 0; i--) {
+			Sound sound = virtualSounds.get(i);
+			if (!sound.advance(elapsedTime))
+				removeVirtualSound(sound);
+		}
+		while (!virtualSounds.isEmpty()) {
+			// the sound with the highest priority is the most important one, the loudest one among equals
+			Sound mostImportant = null;
+			float loudest = 0;
+			for (int i = 0; i < virtualSounds.size(); i++) {
+				Sound sound = virtualSounds.get(i);
+				if (mostImportant != null && sound.priority < mostImportant.priority)
+					continue;
+				if (!isAudible(sound, true))
+					continue;
+				float audibility = getAudibility(sound);
+				if (mostImportant == null || sound.priority > mostImportant.priority || audibility > loudest) {
+					mostImportant = sound;
+					loudest = audibility;
+				}
+			}
+			if (mostImportant == null)
+				break;
+			ALSource source = voices.acquireFromLower(mostImportant.priority);
+			if (source == null)
+				break;
+			removeVirtualSound(mostImportant);
+			mostImportant.couple(source);
+		}
+	}
+
+	/** lets the given sound continue playing without a source */
+	static void addVirtualSound(Sound sound) {
+		if (sound.isVirtual())
+			return;
+		sound.virtualIndex = virtualSounds.size();
+		virtualSounds.add(sound);
+	}
+
+	static void removeVirtualSound(Sound sound) {
+		int index = sound.virtualIndex;
+		if (index < 0)
+			return;
+		// move the last sound into the gap, so removing doesn't have to shift the whole list
+		Sound last = virtualSounds.remove(virtualSounds.size() - 1);
+		if (last != sound) {
+			virtualSounds.set(index, last);
+			last.virtualIndex = index;
+		}
+		sound.virtualIndex = -1;
+	}
+
+	/**
+	 * Plays a buffer once at the given position, without creating a new Sound. Once enough one-shots have been played for the pool to fit them all, this doesn't allocate anything
+	 * @param buffer buffer to play, get one from ALBufferBank.acquireSound() and keep it
+	 * @param priority Priority of the sound, see Sound.PRIORITY_*
+	 * @return handle of the playback, see stopOneShot() and isOneShotPlaying(). NO_HANDLE if called from another thread while the audio thread runs, since the playback only starts later
+	 */
+	public static long playOneShot(ALBuffer buffer, float posX, float posY, float posZ, float gain, float pitch, int priority) {
+		return playOneShot(SoundCategory.EFFECT, buffer, posX, posY, posZ, gain, pitch, priority);
+	}
+
+	/** Like playOneShot(ALBuffer, float, float, float, float, float, int), with a category other than SoundCategory.EFFECT */
+	public static long playOneShot(SoundCategory category, ALBuffer buffer, float posX, float posY, float posZ, float gain, float pitch, int priority) {
+		if (isQueued()) {
+			Command command = Command.obtain(Command.PLAY_ONE_SHOT, buffer);
+			command.argument = category;
+			command.values[0] = posX;
+			command.values[1] = posY;
+			command.values[2] = posZ;
+			command.values[3] = gain;
+			command.values[4] = pitch;
+			command.number = priority;
+			if (Command.submit(command))
+				return NO_HANDLE;
+		}
+		return oneShots.play(buffer, category, posX, posY, posZ, gain, pitch, priority);
+	}
+
+	/** Stops the one-shot playback of the given handle. Does nothing if it already ended */
+	public static void stopOneShot(long handle) {
+		if (Command.queue(Command.STOP_ONE_SHOT, null, handle))
+			return;
+		OneShotSound sound = oneShots.get(handle);
+		if (sound != null)
+			sound.stop();
+	}
+
+	/** Returns whether the one-shot playback of the given handle is still running */
+	public static boolean isOneShotPlaying(long handle) {
+		return oneShots.get(handle) != null;
+	}
+
+	/** Makes the one-shot pool hold at least the given number of sounds, so playing that many at once doesn't allocate */
+	public static void reserveOneShots(int count) {
+		if (Command.queue(Command.RESERVE_ONE_SHOTS, null, (long) count))
+			return;
+		oneShots.reserve(count);
+	}
+
+	/** Returns how many one-shots are playing at the moment */
+	public static int getOneShotCount() {
+		return oneShots.getActiveCount();
+	}
+
+	/** Returns how many sounds are playing without a source at the moment */
+	public static int getVirtualSoundCount() {
+		return virtualSounds.size();
+	}
+
+	/**
+	 * Enables or disables batched mode. In batched mode, setting position, velocity, gain or pitch of a sound only records the new value; update() then sends each changed property once. This saves a lot of calls to the sound device when moving many sounds every frame
+	 */
+	public static void setBatched(boolean batched) {
+		if (Command.queue(Command.SET_BATCHED, null, batched))
+			return;
+		SoundManager.batched = batched;
+		if (!batched) {
+			// nothing may stay pending once values are expected to be sent immediately
+			for (int i = 0; i < sources.length; i++) {
+				if (sources[i] != null)
+					sources[i].flush();
+			}
+		}
+	}
+
+	public static boolean isBatched() {
+		return batched;
 	}
 
 	/** Frees all sources on the sound device */
@@ -108,9 +496,11 @@ public class SoundManager {
 	 * This function is the lazy alternative to setListener. It assumes the listener's "eyes" are looking towards z+ with the "head" pointing towards y-. It also calculates the listener's velocity on its own by delta position
 	 */
 	public static void recalculateListener(float posX, float posY, float posZ) {
+		if (Command.queue(Command.RECALCULATE_LISTENER, null, posX, posY, posZ))
+			return;
 
-		float time = (float) System.nanoTime() / 1000000000;
-		float elapsedTime = time - lastUpdateTime;
+		long time = getTime();
+		float elapsedTime = (time - lastUpdateTime) / 1e9f;
 		if (elapsedTime > 0) {
 			float velX = (posX - lastListenerPosX) / elapsedTime;
 			float velY = (posY - lastListenerPosY) / elapsedTime;
@@ -119,46 +509,49 @@ public class SoundManager {
 			lastListenerPosX = posX;
 			lastListenerPosY = posY;
 			lastListenerPosZ = posZ;
-			SoundManager.setListener(new float[] { posX, posY, posZ }, new float[] { velX, velY, velZ }, new float[] { 0, 0, 1 }, new float[] { 0, -1, 0 });
+			SoundManager.setListener(posX, posY, posZ, velX, velY, velZ, 0, 0, 1, 0, -1, 0);
 		}
 
 	}
 
 	/**
-	 * Returns an available source to play a sound back. If no free source or source with finished playback was found, it kicks out sounds with lower or equal priorities
+	 * Returns an available source to play a sound back. If there is no free source, it kicks out the oldest sound with the lowest priority lower than or equal to the given one
 	 * @param priority Priority of the new sound
 	 * @return ALSource the sound can be played through, or null if no source is available
 	 */
 	static ALSource getFreeSource(int priority) {
-		ALSource newSource = null;
-		for (ALSource source : sources) {
-			if (source.isUncoupled()) {
-				return source;
-			} else if (source.isStopped()) {
-				source.uncouple();
-				return source;
-			} else if (source.priority <= priority) {
-				priority = source.priority;
-				newSource = source;
-			}
-		}
-		if (newSource == null) {
-			System.out.println("OpenAL Problem: All Sources are occupied. No free source for Priority " + priority + " was found!");
-			return null;
-		}
-		// If the code reached here, a source with lower or equal priority (the lowest available) is considered the new source
-		newSource.uncouple();
-		return newSource;
+		return voices.acquire(priority);
+	}
+
+	/** uncouples the given source from its sound, if any, and puts it back into the pool of free sources */
+	static void releaseSource(ALSource source) {
+		if (!source.isUncoupled())
+			source.uncouple();
+		voices.release(source);
+	}
+
+	/** Returns how many sources are free at the moment */
+	public static int getFreeSourceCount() {
+		return voices.getFreeCount();
+	}
+
+	/** Sets the listener that gets notified if a sound can't get a source because all of them are busy with sounds of higher priority. null for none */
+	public static void setSourcePoolListener(SourcePoolListener listener) {
+		voices.setListener(listener);
 	}
 
 	/** Clears everything and shuts down the OpenAL Context */
 	public static void shutdown() {
-		ALBufferBank.clear();
+		stopAudioThread();
+		// deleting the sources first lets go of the buffers attached to them, which can be deleted then
 		clear();
-		AL.destroy();
+		ALBufferBank.clear();
+		ALHelper.getBackend().destroy();
 	}
 
 	static void updateGain(SoundCategory category) {
+		if (Command.queue(Command.UPDATE_CATEGORY_GAIN, category))
+			return;
 		for (int i = 0; i < sources.length; i++) {
 			if (sources[i] != null) {
 				sources[i].updateGain(category);
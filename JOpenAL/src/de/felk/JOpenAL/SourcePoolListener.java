@@ -0,0 +1,14 @@
+package de.felk.JOpenAL;
+
+/** Gets notified when a sound asks for a source while every source is busy with sounds of higher priority */
+public interface SourcePoolListener {
+
+	/**
+	 * Called when no source could be found for a sound
+	 *
+	 * @param priority
+	 *            priority of the sound that didn't get a source
+	 */
+	public void poolExhausted(int priority);
+
+}
@@ -0,0 +1,290 @@
+package de.felk.JOpenAL;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.lwjgl.openal.OpenALException;
+
+/**
+ * A sound that gets decoded chunk by chunk while it plays, instead of being loaded into a single buffer up front. Meant for long tracks like music: memory usage stays at BUFFER_COUNT * CHUNK_SIZE bytes and playback starts as soon as the first chunk is decoded. The chunks get refilled in SoundManager.update()
+ */
+public class StreamingSound extends Sound {
+
+	public static int BUFFER_COUNT = 4; // how many AL buffers each stream cycles through
+	public static int CHUNK_SIZE = 65536; // how many bytes of PCM data get decoded into each AL buffer
+
+	private PCMStream stream;
+	private int[] bufferIDs;
+	private ByteBuffer chunk;
+	private boolean endOfStream = false;
+	private boolean started = false; // whether the stream has been played before and has to be rewound on the next play
+	// the filled chunks in playback order, queued on the source or kept for it while the sound is virtual. Positions are stream frames counted on across loops
+	private int[] queuedIDs;
+	private int[] queuedFrames;
+	private int queuedCount = 0;
+	private long queueStart = 0; // position the first queued chunk starts at
+	private long decodedFrames = 0; // position the last queued chunk ends at
+	private double position = 0; // playback position, kept up to date while virtual
+
+	public StreamingSound(SoundCategory category, float posX, float posY, float posZ, String filename) {
+		this(category, filename, posX, posY, posZ, 0, 0, 0, false, 1f, 1f);
+	}
+
+	public StreamingSound(SoundCategory category, String filename, float posX, float posY, float posZ, float velX, float velY, float velZ, boolean looping, float gain, float pitch) {
+		super(category, new String[0], posX, posY, posZ, velX, velY, velZ, looping, gain, pitch);
+		try {
+			this.stream = ALBufferBank.openStream(filename);
+		} catch (IOException e) {
+			System.out.println("Error opening stream");
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	void update() {
+		ALSource source = getSource();
+		int sourceID = source.getSourceID();
+		try {
+			// refill every chunk that has been played back and put it at the end of the queue again
+			int processed = ALHelper.getBuffersProcessed(sourceID);
+			for (int i = 0; i < processed; i++) {
+				// the source hands the chunks back in the order they were queued
+				ALHelper.unqueueBuffer(sourceID);
+				popChunk();
+			}
+			fillQueue(sourceID);
+			if (isPlaying() && source.isStopped()) {
+				if (ALHelper.getBuffersQueued(sourceID) > 0) {
+					// decoding couldn't keep up and the source ran dry, continue where it stopped
+					source.play();
+				} else {
+					finish();
+				}
+			}
+		} catch (IOException | OpenALException e) {
+			e.printStackTrace();
+			System.out.println("error refilling stream for Source with ID " + sourceID);
+		}
+	}
+
+	/** decodes the next chunk of the stream into the given buffer. Returns the number of frames decoded, 0 if there was nothing left */
+	private int fill(int bufferID) throws IOException {
+		if (endOfStream)
+			return 0;
+		chunk.clear();
+		boolean rewound = false;
+		while (chunk.hasRemaining()) {
+			int read = stream.read(chunk);
+			if (read < 0) {
+				if (!isLooping() || rewound) {
+					endOfStream = true;
+					break;
+				}
+				stream.reset();
+				rewound = true;
+			} else if (read == 0) {
+				// less than a whole sample frame fits into the chunk
+				break;
+			} else {
+				rewound = false;
+			}
+		}
+		chunk.flip();
+		if (!chunk.hasRemaining())
+			return 0;
+		ALHelper.setBuffer(bufferID, ALHelper.getFormat(stream.getChannels()), chunk, stream.getSampleRate());
+		return chunk.remaining() / getFrameSize();
+	}
+
+	/** fills the chunks that aren't queued and queues them on the given source, or only records them if sourceID is 0. Returns how many got filled */
+	private int fillQueue(int sourceID) throws IOException {
+		int filled = 0;
+		while (queuedCount < bufferIDs.length) {
+			int bufferID = getFreeChunk();
+			int frames = fill(bufferID);
+			if (frames == 0)
+				break;
+			if (sourceID != 0)
+				ALHelper.queueBuffer(sourceID, bufferID);
+			queuedIDs[queuedCount] = bufferID;
+			queuedFrames[queuedCount] = frames;
+			queuedCount++;
+			decodedFrames += frames;
+			filled++;
+		}
+		return filled;
+	}
+
+	/** drops the first chunk of the queue record, as it has been played */
+	private void popChunk() {
+		queueStart += queuedFrames[0];
+		queuedCount--;
+		System.arraycopy(queuedIDs, 1, queuedIDs, 0, queuedCount);
+		System.arraycopy(queuedFrames, 1, queuedFrames, 0, queuedCount);
+	}
+
+	/** returns a chunk buffer that isn't in the queue record */
+	private int getFreeChunk() {
+		for (int bufferID : bufferIDs) {
+			boolean queued = false;
+			for (int i = 0; i < queuedCount && !queued; i++) {
+				queued = queuedIDs[i] == bufferID;
+			}
+			if (!queued)
+				return bufferID;
+		}
+		throw new IllegalStateException("all chunks are queued");
+	}
+
+	private int getFrameSize() {
+		return stream.getChannels() * 2;
+	}
+
+	private void createChunks() {
+		bufferIDs = ALHelper.genBuffers(BUFFER_COUNT);
+		chunk = BufferPool.acquire(CHUNK_SIZE);
+		queuedIDs = new int[BUFFER_COUNT];
+		queuedFrames = new int[BUFFER_COUNT];
+	}
+
+	/** queues the chunks on a newly coupled source and continues at the playback position. Chunks decoded before but not played yet come first */
+	private void requeue() {
+		ALSource source = getSource();
+		if (stream == null || source == null)
+			return;
+		if (bufferIDs == null)
+			createChunks();
+		source.setBuffer(null);
+		int sourceID = source.getSourceID();
+		try {
+			for (int i = 0; i < queuedCount; i++) {
+				ALHelper.queueBuffer(sourceID, queuedIDs[i]);
+			}
+			fillQueue(sourceID);
+			long skipped = (long) position - queueStart;
+			if (skipped > 0 && queuedCount > 0)
+				ALHelper.setByteOffset(sourceID, (int) skipped * getFrameSize());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** rewinds the stream to the beginning and queues the first chunks */
+	private void rewind() {
+		if (getSource() != null)
+			getSource().stop();
+		try {
+			stream.reset();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		endOfStream = false;
+		queuedCount = 0;
+		queueStart = 0;
+		decodedFrames = 0;
+		position = 0;
+		requeue();
+	}
+
+	@Override
+	void selectBuffer(int buffer) {
+		// there are no static buffers to select from, a newly coupled source gets the chunks queued instead
+		requeue();
+	}
+
+	@Override
+	void setUncoupled() {
+		ALSource source = getSource();
+		// the chunks stay queued on the source until it lets go, so the offset still counts from the first of them
+		if (bufferIDs != null && (isPlaying() || isPaused())) {
+			try {
+				position = queueStart + ALHelper.getByteOffset(source.getSourceID()) / getFrameSize();
+			} catch (OpenALException e) {
+				e.printStackTrace();
+				position = queueStart;
+			}
+		}
+		super.setUncoupled();
+	}
+
+	@Override
+	boolean advance(float seconds) {
+		if (stream == null) {
+			finish();
+			return false;
+		}
+		position += seconds * getPitch() * stream.getSampleRate();
+		try {
+			if (bufferIDs == null)
+				createChunks();
+			// chunks that got played meanwhile are dropped. Only once the position is past all of them the stream gets decoded, to find out where it ends
+			while (true) {
+				while (queuedCount > 0 && position >= queueStart + queuedFrames[0]) {
+					popChunk();
+				}
+				if (position < decodedFrames || endOfStream)
+					break;
+				if (fillQueue(0) == 0)
+					break;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			finish();
+			return false;
+		}
+		if (position >= decodedFrames && endOfStream) {
+			finish();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void play() {
+		if (SoundManager.isQueued()) {
+			// queues a call of this method for the audio thread
+			super.play();
+			return;
+		}
+		// unless resuming, start over with the whole ring filled from the beginning
+		if (started && !isPaused())
+			rewind();
+		started = true;
+		super.play();
+	}
+
+	@Override
+	public void setLooping(boolean looping) {
+		super.setLooping(looping);
+		if (SoundManager.isQueued())
+			return;
+		// looping is done by rewinding the stream, the source itself must not loop over its queue
+		if (getSource() != null)
+			getSource().setLooping(false);
+	}
+
+	/** Stops the playback, frees the chunk buffers on the sound device and closes the stream */
+	@Override
+	public void destroy() {
+		if (SoundManager.isQueued()) {
+			// queues a call of this method for the audio thread
+			super.destroy();
+			return;
+		}
+		// stopping gives the source back, detaching the chunks, as queued buffers can't be deleted
+		stop();
+		super.destroy();
+		if (bufferIDs != null) {
+			ALHelper.destroyBuffers(bufferIDs);
+			bufferIDs = null;
+			BufferPool.release(chunk);
+			chunk = null;
+		}
+		try {
+			stream.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
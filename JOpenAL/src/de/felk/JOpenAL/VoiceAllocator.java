@@ -0,0 +1,107 @@
+package de.felk.JOpenAL;
+
+import java.util.ArrayDeque;
+
+/**
+ * Hands out the sources of the sound device. Free sources are kept on a stack, busy ones in one list per priority, oldest first. Getting a free source and stealing the oldest one of the lowest priority both take constant time
+ */
+class VoiceAllocator {
+
+	private final ArrayDeque<ALSource> free = new ArrayDeque<ALSource>();
+	// busy sources by priority as doubly linked lists through ALSource.previous/next, oldest at the head
+	private final ALSource[] heads = new ALSource[Sound.PRIORITY_HIGH + 1];
+	private final ALSource[] tails = new ALSource[Sound.PRIORITY_HIGH + 1];
+	private SourcePoolListener listener = null;
+
+	VoiceAllocator(ALSource[] sources) {
+		for (ALSource source : sources) {
+			free.push(source);
+		}
+	}
+
+	/**
+	 * Returns a free source. If there is none, the oldest source with the lowest priority lower than or equal to the given one gets taken away from its sound
+	 * @param priority Priority of the new sound
+	 * @return ALSource the sound can be played through, or null if no source is available
+	 */
+	ALSource acquire(int priority) {
+		int bucket = getBucket(priority);
+		ALSource source = acquire(priority, bucket);
+		if (source == null && listener != null)
+			listener.poolExhausted(priority);
+		return source;
+	}
+
+	/** Like acquire(), but only takes sources away from sounds with a strictly lower priority. Used to give virtual sounds a source again without them taking turns */
+	ALSource acquireFromLower(int priority) {
+		return acquire(priority, getBucket(priority) - 1);
+	}
+
+	/** returns a free source, or steals the oldest one with a priority up to maxBucket */
+	private ALSource acquire(int priority, int maxBucket) {
+		ALSource source = free.poll();
+		if (source == null) {
+			for (int i = 0; i <= maxBucket && source == null; i++) {
+				source = heads[i];
+			}
+			if (source == null)
+				return null;
+			unlink(source);
+			source.uncouple();
+		}
+		source.priority = priority;
+		link(source, getBucket(priority));
+		return source;
+	}
+
+	/** gives a source back to the free list. Does nothing if it already is free */
+	void release(ALSource source) {
+		if (source.bucket < 0)
+			return;
+		unlink(source);
+		free.push(source);
+	}
+
+	/** returns how many sources are free at the moment */
+	int getFreeCount() {
+		return free.size();
+	}
+
+	void setListener(SourcePoolListener listener) {
+		this.listener = listener;
+	}
+
+	/** returns the list index for the given priority. Priorities outside the predefined range share the list of the nearest one */
+	private static int getBucket(int priority) {
+		return Math.max(Sound.PRIORITY_DELETE, Math.min(Sound.PRIORITY_HIGH, priority));
+	}
+
+	/** appends the source to the busy list of the given priority */
+	private void link(ALSource source, int bucket) {
+		source.bucket = bucket;
+		source.previous = tails[bucket];
+		source.next = null;
+		if (tails[bucket] == null)
+			heads[bucket] = source;
+		else
+			tails[bucket].next = source;
+		tails[bucket] = source;
+	}
+
+	/** removes the source from the busy list it is in */
+	private void unlink(ALSource source) {
+		int bucket = source.bucket;
+		if (source.previous == null)
+			heads[bucket] = source.next;
+		else
+			source.previous.next = source.next;
+		if (source.next == null)
+			tails[bucket] = source.previous;
+		else
+			source.next.previous = source.previous;
+		source.previous = null;
+		source.next = null;
+		source.bucket = -1;
+	}
+
+}
@@ -0,0 +1,93 @@
+package de.felk.JOpenAL;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/** Writes 16 bit PCM samples into a WAV file as they come. The sizes in the header get filled in on close() */
+public class WavWriter implements Closeable {
+
+	private static final int HEADER_SIZE = 44;
+	private static final int BUFFER_SIZE = 65536;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final int sampleRate;
+	private final int channels;
+	private long dataSize = 0;
+
+	/** Creates the file, replacing an existing one */
+	public WavWriter(File file, int sampleRate, int channels) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		// sizes are unknown yet, written again on close()
+		writeHeader();
+	}
+
+	/** Appends the given number of interleaved samples */
+	public void write(short[] samples, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			if (!buffer.hasRemaining())
+				flush();
+			buffer.putShort(samples[i]);
+		}
+		dataSize += count * 2L;
+	}
+
+	/** Returns how many bytes of samples have been written */
+	public long getDataSize() {
+		return dataSize;
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private void writeHeader() throws IOException {
+		// WAV can't describe more than 4 GiB, players read on to the end of the file anyway
+		int size = (int) Math.min(dataSize, 0xFFFFFFFFL - 36);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x46464952); // "RIFF"
+		header.putInt(36 + size);
+		header.putInt(0x45564157); // "WAVE"
+		header.putInt(0x20746D66); // "fmt "
+		header.putInt(16);
+		header.putShort((short) 1); // PCM
+		header.putShort((short) channels);
+		header.putInt(sampleRate);
+		header.putInt(sampleRate * channels * 2);
+		header.putShort((short) (channels * 2));
+		header.putShort((short) 16);
+		header.putInt(0x61746164); // "data"
+		header.putInt(size);
+		header.flip();
+		long position = 0;
+		while (header.hasRemaining())
+			position += channel.write(header, position);
+		if (channel.position() < HEADER_SIZE)
+			channel.position(HEADER_SIZE);
+	}
+
+	/** Writes what is left and completes the header */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			writeHeader();
+		} finally {
+			file.close();
+		}
+	}
+
+}